@@ -0,0 +1,95 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.StringTokenizer;
+
+/**
+ * A threaded kernel that runs microbenchmarks instead of tests. The
+ * benchmarks to run are listed, comma-separated, in
+ * <tt>BenchKernel.benchmarks</tt>; each is the name of a <tt>Benchmark</tt>
+ * subclass in this package. <tt>BenchKernel.warmupRounds</tt>,
+ * <tt>BenchKernel.rounds</tt>, and <tt>BenchKernel.ops</tt> control how long
+ * each benchmark runs, and <tt><i>name</i>.ops</tt> overrides the number of
+ * operations per round for one benchmark.
+ *
+ * <p>
+ * The benchmarks run under whatever <tt>ThreadedKernel.scheduler</tt> names.
+ * A scheduler that is not implemented yet is detected and reported instead
+ * of hanging or crashing the benchmarks.
+ */
+public class BenchKernel extends ThreadedKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public BenchKernel() {
+		super();
+	}
+
+	/**
+	 * Initialize this kernel, unless the scheduler cannot even create a ready
+	 * queue.
+	 */
+	public void initialize(String[] args) {
+		Scheduler probe = (Scheduler) Lib.constructObject(Config
+				.getString("ThreadedKernel.scheduler"));
+		if (probe.newThreadQueue(false) == null)
+			skip();
+
+		super.initialize(args);
+	}
+
+	/**
+	 * Benchmarks are not tests, so this method does nothing.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run each benchmark listed in <tt>BenchKernel.benchmarks</tt>.
+	 */
+	public void run() {
+		if (!schedulerWorks())
+			skip();
+
+		int warmupRounds = Config.getInteger("BenchKernel.warmupRounds", 5);
+		int rounds = Config.getInteger("BenchKernel.rounds", 10);
+		int defaultOps = Config.getInteger("BenchKernel.ops", 20000);
+
+		StringTokenizer names = new StringTokenizer(Config.getString(
+				"BenchKernel.benchmarks", "SwitchBench"), ",");
+
+		System.out.println("scheduler: "
+				+ Config.getString("ThreadedKernel.scheduler"));
+
+		while (names.hasMoreTokens()) {
+			String name = names.nextToken();
+			Benchmark benchmark = (Benchmark) Lib.constructObject("nachos.bench."
+					+ name);
+			benchmark.measure(warmupRounds, rounds, Config.getInteger(name
+					+ ".ops", defaultOps));
+		}
+	}
+
+	/**
+	 * Test whether a ready queue from the scheduler gives back a thread that
+	 * was put on it.
+	 */
+	private static boolean schedulerWorks() {
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		boolean intStatus = Machine.interrupt().disable();
+		queue.waitForAccess(KThread.currentThread());
+		boolean works = (queue.nextThread() == KThread.currentThread());
+		Machine.interrupt().restore(intStatus);
+
+		return works;
+	}
+
+	private static void skip() {
+		System.out.println("\n" + Config.getString("ThreadedKernel.scheduler")
+				+ " is not implemented, skipping benchmarks");
+		Machine.halt();
+	}
+}
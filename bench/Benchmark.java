@@ -0,0 +1,75 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A microbenchmark run by <tt>BenchKernel</tt>. A benchmark performs some
+ * number of operations per round; <tt>measure()</tt> runs a few warmup rounds
+ * so that the JIT has compiled the code being measured, then reports the mean
+ * wall-clock time and simulated ticks per operation over the timed rounds.
+ *
+ * <p>
+ * Wall-clock time is what the benchmark is about, since it measures the cost
+ * of the simulation itself. The tick count is reported so that a change to
+ * the simulated cost of an operation is not mistaken for a speedup.
+ */
+public abstract class Benchmark {
+	/**
+	 * Allocate a new benchmark.
+	 *
+	 * @param name the name printed with this benchmark's results.
+	 */
+	public Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Perform one round of this benchmark.
+	 *
+	 * @param ops the number of operations to perform.
+	 */
+	public abstract void runRound(int ops);
+
+	/**
+	 * Run this benchmark and print its results.
+	 *
+	 * @param warmupRounds the number of untimed rounds to run first.
+	 * @param rounds the number of timed rounds.
+	 * @param ops the number of operations per round.
+	 */
+	public void measure(int warmupRounds, int rounds, int ops) {
+		for (int i = 0; i < warmupRounds; i++)
+			runRound(ops);
+
+		long startTicks = Machine.timer().getTime();
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < rounds; i++)
+			runRound(ops);
+
+		long elapsedTime = System.nanoTime() - startTime;
+		long elapsedTicks = Machine.timer().getTime() - startTicks;
+		long totalOps = (long) rounds * ops;
+
+		System.out.println(name + ": " + totalOps + " ops in "
+				+ elapsedTime / 1000000 + " ms, " + elapsedTime / totalOps
+				+ " ns/op, " + totalOps * 1000000000L / Math.max(elapsedTime, 1)
+				+ " ops/s, " + elapsedTicks / totalOps + " ticks/op");
+	}
+
+	/**
+	 * Fork a thread that runs the specified target, under the specified name.
+	 *
+	 * @param name the name of the new thread.
+	 * @param target the code the new thread runs.
+	 * @return the new thread.
+	 */
+	protected static KThread fork(String name, Runnable target) {
+		KThread thread = new KThread(target).setName(name);
+		thread.fork();
+		return thread;
+	}
+
+	private String name;
+}
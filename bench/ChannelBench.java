@@ -0,0 +1,44 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures a producer/consumer pipeline over a buffered <tt>Channel</tt>,
+ * transferring words in batches with <tt>speakAll()</tt> and
+ * <tt>listenAll()</tt>. Each operation is one word. Compare with
+ * <tt>CommunicatorBench</tt>, which pays a rendezvous for every word.
+ * <tt>ChannelBench.capacity</tt> and <tt>ChannelBench.batch</tt> set the
+ * buffer and batch sizes.
+ */
+public class ChannelBench extends Benchmark {
+	/**
+	 * Allocate a new channel benchmark.
+	 */
+	public ChannelBench() {
+		super("Channel speakAll/listenAll");
+
+		capacity = Config.getInteger("ChannelBench.capacity", 64);
+		batch = Config.getInteger("ChannelBench.batch", 32);
+	}
+
+	public void runRound(final int ops) {
+		final Channel channel = new Channel(capacity);
+
+		KThread producer = fork("producer", new Runnable() {
+			public void run() {
+				int[] words = new int[batch];
+				for (int i = 0; i < ops; i += batch)
+					channel.speakAll(words, 0, Math.min(batch, ops - i));
+			}
+		});
+
+		int[] words = new int[batch];
+		for (int i = 0; i < ops; i += batch)
+			channel.listenAll(words, 0, Math.min(batch, ops - i));
+
+		producer.join();
+	}
+
+	private int capacity, batch;
+}
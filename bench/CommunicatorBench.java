@@ -0,0 +1,32 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures <tt>Communicator.speak()</tt> and <tt>listen()</tt> between one
+ * speaker and one listener. Each operation is one word transferred.
+ */
+public class CommunicatorBench extends Benchmark {
+	/**
+	 * Allocate a new communicator benchmark.
+	 */
+	public CommunicatorBench() {
+		super("Communicator speak/listen");
+	}
+
+	public void runRound(final int ops) {
+		final Communicator communicator = new Communicator();
+
+		KThread speaker = fork("speaker", new Runnable() {
+			public void run() {
+				for (int i = 0; i < ops; i++)
+					communicator.speak(i);
+			}
+		});
+
+		for (int i = 0; i < ops; i++)
+			communicator.listen();
+
+		speaker.join();
+	}
+}
@@ -0,0 +1,46 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures <tt>Condition2.sleep()</tt> and <tt>wake()</tt> by passing a turn
+ * back and forth between two threads. Each operation is one full round trip.
+ */
+public class Condition2Bench extends Benchmark {
+	/**
+	 * Allocate a new condition variable benchmark.
+	 */
+	public Condition2Bench() {
+		super("Condition2 sleep/wake");
+	}
+
+	public void runRound(final int ops) {
+		final Lock lock = new Lock();
+		final Condition2 turnChanged = new Condition2(lock);
+		final boolean[] partnersTurn = new boolean[1];
+
+		KThread partner = fork("condition partner", new Runnable() {
+			public void run() {
+				lock.acquire();
+				for (int i = 0; i < ops; i++) {
+					while (!partnersTurn[0])
+						turnChanged.sleep();
+					partnersTurn[0] = false;
+					turnChanged.wake();
+				}
+				lock.release();
+			}
+		});
+
+		lock.acquire();
+		for (int i = 0; i < ops; i++) {
+			partnersTurn[0] = true;
+			turnChanged.wake();
+			while (partnersTurn[0])
+				turnChanged.sleep();
+		}
+		lock.release();
+
+		partner.join();
+	}
+}
@@ -0,0 +1,27 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures <tt>KThread.fork()</tt> and <tt>join()</tt>. Each operation forks
+ * a thread that does nothing and joins it, so this includes creating and
+ * destroying its TCB.
+ */
+public class ForkJoinBench extends Benchmark {
+	/**
+	 * Allocate a new fork/join benchmark.
+	 */
+	public ForkJoinBench() {
+		super("KThread fork/join");
+	}
+
+	public void runRound(int ops) {
+		for (int i = 0; i < ops; i++)
+			fork("child", empty).join();
+	}
+
+	private static final Runnable empty = new Runnable() {
+		public void run() {
+		}
+	};
+}
@@ -0,0 +1,25 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures an uncontended <tt>Lock.acquire()</tt> and <tt>release()</tt>, the
+ * path every critical section in the kernel takes.
+ */
+public class LockBench extends Benchmark {
+	/**
+	 * Allocate a new lock benchmark.
+	 */
+	public LockBench() {
+		super("Lock acquire/release");
+	}
+
+	public void runRound(int ops) {
+		for (int i = 0; i < ops; i++) {
+			lock.acquire();
+			lock.release();
+		}
+	}
+
+	private Lock lock = new Lock();
+}
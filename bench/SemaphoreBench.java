@@ -0,0 +1,38 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures a <tt>Semaphore</tt> ping-pong between two threads. Each operation
+ * is one <tt>V()</tt> and one <tt>P()</tt> on each of two semaphores, so every
+ * <tt>P()</tt> blocks and every <tt>V()</tt> wakes a thread.
+ */
+public class SemaphoreBench extends Benchmark {
+	/**
+	 * Allocate a new semaphore benchmark.
+	 */
+	public SemaphoreBench() {
+		super("Semaphore P/V ping-pong");
+	}
+
+	public void runRound(final int ops) {
+		final Semaphore ping = new Semaphore(0);
+		final Semaphore pong = new Semaphore(0);
+
+		KThread partner = fork("pong", new Runnable() {
+			public void run() {
+				for (int i = 0; i < ops; i++) {
+					ping.P();
+					pong.V();
+				}
+			}
+		});
+
+		for (int i = 0; i < ops; i++) {
+			ping.V();
+			pong.P();
+		}
+
+		partner.join();
+	}
+}
@@ -0,0 +1,31 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures the cost of a context switch by ping-ponging the CPU between the
+ * current thread and a partner thread with <tt>KThread.yield()</tt>. Each
+ * operation is one yield by each of the two threads.
+ */
+public class SwitchBench extends Benchmark {
+	/**
+	 * Allocate a new context switch benchmark.
+	 */
+	public SwitchBench() {
+		super("KThread.yield() ping-pong");
+	}
+
+	public void runRound(final int ops) {
+		KThread partner = fork("yield partner", new Runnable() {
+			public void run() {
+				for (int i = 0; i < ops; i++)
+					KThread.yield();
+			}
+		});
+
+		for (int i = 0; i < ops; i++)
+			KThread.yield();
+
+		partner.join();
+	}
+}
@@ -0,0 +1,33 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures a <tt>SynchList</tt> producer/consumer pair. Each operation is one
+ * item added by the producer and removed by the consumer.
+ */
+public class SynchListBench extends Benchmark {
+	/**
+	 * Allocate a new synchronized list benchmark.
+	 */
+	public SynchListBench() {
+		super("SynchList producer/consumer");
+	}
+
+	public void runRound(final int ops) {
+		final SynchList list = new SynchList();
+		final Object item = new Object();
+
+		KThread producer = fork("producer", new Runnable() {
+			public void run() {
+				for (int i = 0; i < ops; i++)
+					list.add(item);
+			}
+		});
+
+		for (int i = 0; i < ops; i++)
+			list.removeFirst();
+
+		producer.join();
+	}
+}
@@ -0,0 +1,37 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures running a task on a <tt>KThreadPool</tt>. Each operation submits a
+ * task that does nothing and joins its future. Compare with
+ * <tt>ForkJoinBench</tt>, which forks a new thread for each task.
+ * <tt>ThreadPoolBench.workers</tt> sets the number of workers.
+ */
+public class ThreadPoolBench extends Benchmark {
+	/**
+	 * Allocate a new thread pool benchmark.
+	 */
+	public ThreadPoolBench() {
+		super("KThreadPool submit/join");
+
+		workers = Config.getInteger("ThreadPoolBench.workers", 4);
+	}
+
+	public void runRound(int ops) {
+		KThreadPool pool = new KThreadPool("bench pool", workers);
+
+		for (int i = 0; i < ops; i++)
+			pool.submit(empty).join();
+
+		pool.shutdown();
+	}
+
+	private int workers;
+
+	private static final Runnable empty = new Runnable() {
+		public void run() {
+		}
+	};
+}
@@ -0,0 +1,113 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A link transport that sends UDP datagrams on the local host through a
+ * non-blocking NIO <tt>DatagramChannel</tt>. It uses the same ports as
+ * <tt>SocketTransport</tt>, so links using either transport can talk to each
+ * other.
+ * 
+ * <p>
+ * The receive thread waits on a <tt>Selector</tt> and then drains every
+ * datagram that is ready, up to the free space in the receive ring, before
+ * selecting again. Sends go straight to the channel and never allocate a
+ * datagram object.
+ */
+public class ChannelTransport implements LinkTransport {
+	/**
+	 * Allocate a new channel transport.
+	 */
+	public ChannelTransport() {
+	}
+
+	public int open(NetworkLink link) {
+		this.link = link;
+
+		localHost = SocketTransport.localHost().getHostAddress();
+
+		int linkAddress;
+		for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
+			try {
+				DatagramChannel c = DatagramChannel.open();
+				try {
+					c.bind(new InetSocketAddress(localHost,
+							NetworkLink.portBase + linkAddress));
+				}
+				catch (IOException e) {
+					c.close();
+					continue;
+				}
+
+				channel = c;
+				channel.configureBlocking(false);
+				selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_READ);
+				break;
+			}
+			catch (IOException e) {
+				return -1;
+			}
+		}
+
+		if (channel == null)
+			return -1;
+
+		addresses = new InetSocketAddress[Packet.linkAddressLimit];
+
+		Thread receiveThread = new Thread(new Runnable() {
+			public void run() {
+				receiveLoop();
+			}
+		});
+
+		receiveThread.start();
+
+		return linkAddress;
+	}
+
+	private void receiveLoop() {
+		try {
+			while (true) {
+				selector.select();
+				selector.selectedKeys().clear();
+
+				// drain everything that is ready into the ring
+				while (true) {
+					ByteBuffer buffer = ByteBuffer.wrap(link.receiveBuffer());
+					if (channel.receive(buffer) == null)
+						break;
+
+					link.received(buffer.position());
+				}
+			}
+		}
+		catch (IOException e) {
+		}
+	}
+
+	public void send(byte[] bytes, int length, int dstLink) throws IOException {
+		if (addresses[dstLink] == null)
+			addresses[dstLink] = new InetSocketAddress(localHost,
+					NetworkLink.portBase + dstLink);
+
+		channel.send(ByteBuffer.wrap(bytes, 0, length), addresses[dstLink]);
+	}
+
+	private NetworkLink link;
+
+	private String localHost;
+
+	private DatagramChannel channel = null;
+
+	private Selector selector;
+
+	private InetSocketAddress[] addresses;
+}
@@ -175,6 +175,9 @@ public final class ElevatorBank implements Runnable {
 					interrupt();
 				}
 			};
+
+			interruptHandle = privilege.interrupt.register("elevator",
+					interrupt);
 		}
 
 		public int getNumFloors() {
@@ -267,7 +270,7 @@ public final class ElevatorBank implements Runnable {
 		}
 
 		void schedule(int when) {
-			privilege.interrupt.schedule(when, "elevator", interrupt);
+			privilege.interrupt.schedule(when, interruptHandle);
 		}
 
 		void postEvent(int event, int floor, int elevator, boolean schedule) {
@@ -290,7 +293,7 @@ public final class ElevatorBank implements Runnable {
 					else {
 						elevators[i].nextETA += Stats.ElevatorTicks;
 						privilege.interrupt.schedule(Stats.ElevatorTicks,
-								"elevator", interrupt);
+								interruptHandle);
 					}
 				}
 			}
@@ -318,6 +321,8 @@ public final class ElevatorBank implements Runnable {
 
 		Runnable interrupt;
 
+		int interruptHandle;
+
 		KThread thread;
 
 		Runnable handler = null;
@@ -447,6 +452,8 @@ public final class ElevatorBank implements Runnable {
 					interrupt();
 				}
 			};
+
+			interruptHandle = privilege.interrupt.register("rider", interrupt);
 		}
 
 		public int getNumFloors() {
@@ -590,7 +597,7 @@ public final class ElevatorBank implements Runnable {
 		}
 
 		void schedule(int when) {
-			privilege.interrupt.schedule(when, "rider", interrupt);
+			privilege.interrupt.schedule(when, interruptHandle);
 		}
 
 		void interrupt() {
@@ -622,6 +629,8 @@ public final class ElevatorBank implements Runnable {
 
 		Runnable interrupt, handler = null;
 
+		int interruptHandle;
+
 		LinkedList<RiderEvent> events = new LinkedList<RiderEvent>();
 
 		Vector<Integer> floors = new Vector<Integer>();
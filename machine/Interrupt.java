@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +37,19 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
  * fail in real life, you should still write properly synchronized code.
+ * 
+ * <p>
+ * If <tt>Interrupt.ticklessIdle</tt> is set in <tt>nachos.conf</tt>, the
+ * kernel may call <tt>idle()</tt> when no thread is ready to run. Simulated
+ * time then skips directly to the next pending interrupt, instead of advancing
+ * one kernel tick at a time while the idle thread spins.
+ * 
+ * <p>
+ * Pending interrupts are kept in a binary heap of primitive arrays, ordered by
+ * time and then by the order in which they were scheduled. Devices register
+ * each of their handlers once, and then schedule it by handle, so scheduling
+ * an interrupt does not allocate any objects. A handler scheduled without
+ * being registered is given a handle that is freed once it has fired.
  */
 public final class Interrupt {
 	/**
@@ -52,7 +64,17 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+
+		heapTime = new long[initialCapacity];
+		heapSeq = new long[initialCapacity];
+		heapHandle = new int[initialCapacity];
+
+		handlerTypes = new String[initialCapacity];
+		handlers = new Runnable[initialCapacity];
+		oneShot = new boolean[initialCapacity];
+		freeHandles = new int[initialCapacity];
+
+		ticklessIdle = Config.getBoolean("Interrupt.ticklessIdle", false);
 	}
 
 	/**
@@ -119,16 +141,163 @@ public final class Interrupt {
 		return !enabled;
 	}
 
-	private void schedule(long when, String type, Runnable handler) {
+	/**
+	 * Tests whether the current thread is running an interrupt handler. A
+	 * thread that gives up the CPU from inside a handler is being preempted,
+	 * rather than yielding of its own accord.
+	 * 
+	 * @return <tt>true</tt> if the current thread is running an interrupt
+	 * handler.
+	 */
+	public boolean inHandler() {
+		return handlerTCB != null && handlerTCB == TCB.currentTCB();
+	}
+
+	/**
+	 * Called by the kernel when no thread is ready to run. If tickless idle is
+	 * enabled, advance simulated time to one kernel tick before the next
+	 * pending interrupt, so that the next time interrupts are enabled, that
+	 * interrupt (and any others due at the same time) will be invoked in the
+	 * usual order. Otherwise, do nothing.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled. The skipped time is counted as kernel time.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (!ticklessIdle || numPending == 0)
+			return;
+
+		Stats stats = privilege.stats;
+
+		long skip = heapTime[0] - Stats.KernelTick - stats.totalTicks;
+		if (skip <= 0)
+			return;
+
+		Lib.debug(dbgInt, "Idling from time = " + stats.totalTicks
+				+ " to time = " + (stats.totalTicks + skip));
+
+		stats.kernelTicks += skip;
+		stats.totalTicks += skip;
+	}
+
+	private int register(String type, Runnable handler) {
+		Lib.assertTrue(handler != null);
+
+		int handle;
+		if (numFreeHandles > 0) {
+			handle = freeHandles[--numFreeHandles];
+		}
+		else {
+			if (numHandlers == handlers.length) {
+				handlerTypes = Arrays.copyOf(handlerTypes, numHandlers * 2);
+				handlers = Arrays.copyOf(handlers, numHandlers * 2);
+				oneShot = Arrays.copyOf(oneShot, numHandlers * 2);
+				freeHandles = Arrays.copyOf(freeHandles, numHandlers * 2);
+			}
+
+			handle = numHandlers++;
+		}
+
+		handlerTypes[handle] = type;
+		handlers[handle] = handler;
+		oneShot[handle] = false;
+
+		return handle;
+	}
+
+	private void schedule(long when, int handle) {
 		Lib.assertTrue(when > 0);
+		Lib.assertTrue(handle >= 0 && handle < numHandlers);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + handlerTypes[handle]
+					+ " interrupt handler at time = " + time);
+
+		if (numPending == heapTime.length) {
+			heapTime = Arrays.copyOf(heapTime, numPending * 2);
+			heapSeq = Arrays.copyOf(heapSeq, numPending * 2);
+			heapHandle = Arrays.copyOf(heapHandle, numPending * 2);
+		}
+
+		// sift the new entry up from the bottom of the heap
+		long seq = numPendingInterruptsCreated++;
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(time, seq, parent))
+				break;
 
-		pending.add(toOccur);
+			move(parent, i);
+			i = parent;
+		}
+
+		heapTime[i] = time;
+		heapSeq[i] = seq;
+		heapHandle[i] = handle;
+	}
+
+	/**
+	 * Schedule a handler that was not registered in advance. It is given a
+	 * handle of its own, which is freed when the interrupt fires.
+	 */
+	private void schedule(long when, String type, Runnable handler) {
+		int handle = register(type, handler);
+		oneShot[handle] = true;
+
+		schedule(when, handle);
+	}
+
+	/**
+	 * Remove the earliest pending interrupt from the top of the heap.
+	 */
+	private void removeFirst() {
+		int last = --numPending;
+		if (last == 0)
+			return;
+
+		long time = heapTime[last];
+		long seq = heapSeq[last];
+		int handle = heapHandle[last];
+
+		// sift the last entry down from the top of the heap
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= last)
+				break;
+
+			if (child + 1 < last
+					&& before(heapTime[child + 1], heapSeq[child + 1], child))
+				child++;
+
+			if (!before(heapTime[child], heapSeq[child], time, seq))
+				break;
+
+			move(child, i);
+			i = child;
+		}
+
+		heapTime[i] = time;
+		heapSeq[i] = seq;
+		heapHandle[i] = handle;
+	}
+
+	private boolean before(long time, long seq, int i) {
+		return before(time, seq, heapTime[i], heapSeq[i]);
+	}
+
+	private static boolean before(long time1, long seq1, long time2, long seq2) {
+		return time1 < time2 || (time1 == time2 && seq1 < seq2);
+	}
+
+	private void move(int from, int to) {
+		heapTime[to] = heapTime[from];
+		heapSeq[to] = heapSeq[from];
+		heapHandle[to] = heapHandle[from];
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -159,27 +328,34 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (numPending == 0 || heapTime[0] > time)
 			return;
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
-
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		if (Lib.test(dbgInt))
+			System.out.println("Invoking interrupt handlers at time = " + time);
 
-			Lib.assertTrue(next.time <= time);
+		while (numPending > 0 && heapTime[0] <= time) {
+			int handle = heapHandle[0];
+			removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
-
-			next.handler.run();
+			if (Lib.test(dbgInt))
+				System.out.println("  " + handlerTypes[handle]);
+
+			Runnable handler = handlers[handle];
+			if (oneShot[handle]) {
+				handlerTypes[handle] = null;
+				handlers[handle] = null;
+				freeHandles[numFreeHandles++] = handle;
+			}
+
+			// a handler may switch threads, so remember whose handler this is
+			TCB previous = handlerTCB;
+			handlerTCB = TCB.currentTCB();
+			handler.run();
+			handlerTCB = previous;
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,59 +366,80 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		// heap order is not time order, so sort a copy of the heap
+		Integer[] order = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			order[i] = Integer.valueOf(i);
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int i = a.intValue(), j = b.intValue();
+				if (before(heapTime[i], heapSeq[i], j))
+					return -1;
+				else if (before(heapTime[j], heapSeq[j], i))
+					return 1;
+				else
+					return 0;
+			}
+		});
+
+		for (int k = 0; k < numPending; k++) {
+			int i = order[k].intValue();
+			System.out.println("  " + handlerTypes[heapHandle[i]]
+					+ ", scheduled at " + heapTime[i]);
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+	private long numPendingInterruptsCreated = 0;
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
+	private Privilege privilege;
 
-		long time;
+	private boolean enabled;
 
-		String type;
+	private boolean ticklessIdle;
 
-		Runnable handler;
+	/** The TCB running the innermost interrupt handler, if any. */
+	private TCB handlerTCB = null;
 
-		private long id;
-	}
+	/** Heap of pending interrupts: due time, creation order, handler. */
+	private long[] heapTime;
 
-	private long numPendingInterruptsCreated = 0;
+	private long[] heapSeq;
 
-	private Privilege privilege;
+	private int[] heapHandle;
 
-	private boolean enabled;
+	private int numPending = 0;
+
+	/** Registered handlers and their types, indexed by handle. */
+	private String[] handlerTypes;
+
+	private Runnable[] handlers;
+
+	private int numHandlers = 0;
+
+	/** Whether each handle is freed once its interrupt fires. */
+	private boolean[] oneShot;
+
+	/** Freed handles, to be given out again before new ones. */
+	private int[] freeHandles;
 
-	private TreeSet<PendingInterrupt> pending;
+	private int numFreeHandles = 0;
+
+	private static final int initialCapacity = 16;
 
 	private static final char dbgInt = 'i';
 
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
+		public int register(String type, Runnable handler) {
+			return Interrupt.this.register(type, handler);
+		}
+
+		public void schedule(long when, int handle) {
+			Interrupt.this.schedule(when, handle);
+		}
+
 		public void schedule(long when, String type, Runnable handler) {
 			Interrupt.this.schedule(when, type, handler);
 		}
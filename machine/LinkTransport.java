@@ -0,0 +1,37 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+
+/**
+ * The medium over which a <tt>NetworkLink</tt> exchanges packets with the
+ * other links on its network. The transport is chosen by
+ * <tt>NetworkLink.transport</tt> in <tt>nachos.conf</tt>.
+ * 
+ * <p>
+ * A transport delivers the packets it receives into the link's receive ring,
+ * using <tt>receiveBuffer()</tt> and <tt>received()</tt> if it receives on a
+ * thread of its own, or <tt>deliver()</tt> if it delivers from the sending
+ * side.
+ * 
+ * @see nachos.machine.NetworkLink
+ */
+public interface LinkTransport {
+	/**
+	 * Attach <i>link</i> to the network at the lowest free link address.
+	 * 
+	 * @param link the link whose packets this transport carries.
+	 * @return the link address acquired, or <tt>-1</tt> if none is free.
+	 */
+	public int open(NetworkLink link);
+
+	/**
+	 * Send a packet to another link. Returns once the packet is on its way.
+	 * 
+	 * @param bytes the array holding the packet.
+	 * @param length the number of bytes in the packet.
+	 * @param dstLink the link address of the destination.
+	 */
+	public void send(byte[] bytes, int length, int dstLink) throws IOException;
+}
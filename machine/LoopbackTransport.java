@@ -0,0 +1,55 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A link transport that never leaves the JVM. Every link using it is attached
+ * to one in-process fabric, and a packet sent to a link is copied straight
+ * into that link's receive ring when its transmission completes, in simulated
+ * time. No sockets or extra Java threads are involved, so a run using it is
+ * deterministic for a given random seed.
+ * 
+ * <p>
+ * A packet is lost if no link has the destination address, or if the
+ * destination's receive ring is full. Latency, bandwidth, and reliability are
+ * applied by <tt>NetworkLink</tt>, as for any transport.
+ * 
+ * <p>
+ * Nachos runs one machine per JVM, so normally the only link on the fabric is
+ * the machine's own, and this transport serves as a fast, reproducible
+ * loopback network.
+ */
+public class LoopbackTransport implements LinkTransport {
+	/**
+	 * Allocate a new loopback transport.
+	 */
+	public LoopbackTransport() {
+	}
+
+	public int open(NetworkLink link) {
+		synchronized (fabric) {
+			for (int linkAddress = 0; linkAddress < fabric.length; linkAddress++) {
+				if (fabric[linkAddress] == null) {
+					fabric[linkAddress] = link;
+					return linkAddress;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	public void send(byte[] bytes, int length, int dstLink) {
+		NetworkLink dst;
+
+		synchronized (fabric) {
+			dst = fabric[dstLink];
+		}
+
+		if (dst != null)
+			dst.deliver(bytes, length);
+	}
+
+	/** The links attached to the fabric, indexed by link address. */
+	private static final NetworkLink[] fabric = new NetworkLink[Packet.linkAddressLimit];
+}
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -98,9 +100,36 @@ public final class Machine {
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		dumpStats();
 		terminate();
 	}
 
+	/**
+	 * Write the statistics to the file in the test directory named by
+	 * <tt>Machine.statsFile</tt>, if it is set, for programs to read.
+	 */
+	private static void dumpStats() {
+		final String name = Config.getString("Machine.statsFile");
+		if (name == null)
+			return;
+
+		final String dump = stats.dump();
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					FileWriter writer = new FileWriter(new File(testDirectory,
+							name));
+					writer.write(dump);
+					writer.close();
+				}
+				catch (IOException e) {
+					System.out.println("Unable to write statistics to " + name);
+				}
+			}
+		});
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -5,11 +5,7 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.net.SocketException;
+import java.util.LinkedList;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -65,7 +61,19 @@ public class NetworkLink {
 	 * <p>
 	 * <tt>nachos.conf</tt> specifies the reliability of the network. The
 	 * reliability, between 0 and 1, is the probability that any particular
-	 * packet will not get dropped by the network.
+	 * packet will not get dropped by the network. It may also specify
+	 * <tt>NetworkLink.transmitQueue</tt>, the number of packets that can be
+	 * waiting to be sent at once, which defaults to 8, and
+	 * <tt>NetworkLink.receiveQueue</tt>, the number of received packets that
+	 * can be waiting for the kernel, which defaults to 16.
+	 * 
+	 * <p>
+	 * <tt>NetworkLink.transport</tt> names the <tt>LinkTransport</tt> class that
+	 * carries the packets, by default <tt>nachos.machine.SocketTransport</tt>.
+	 * <tt>NetworkLink.ticksPerByte</tt> limits the link's bandwidth, adding
+	 * that many ticks to each packet's transmission time for each of its bytes,
+	 * and <tt>NetworkLink.latency</tt> delays each packet by that many ticks
+	 * after it is transmitted. Both default to 0.
 	 * 
 	 * @param privilege encapsulates privileged access to the Nachos machine.
 	 */
@@ -74,35 +82,37 @@ public class NetworkLink {
 
 		this.privilege = privilege;
 
-		try {
-			localHost = InetAddress.getLocalHost();
-		}
-		catch (UnknownHostException e) {
-			localHost = null;
-		}
-
-		Lib.assertTrue(localHost != null);
-
 		reliability = Config.getDouble("NetworkLink.reliability");
 		Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
-		socket = null;
+		outgoing = new Packet[Config.getInteger("NetworkLink.transmitQueue", 8)];
+		Lib.assertTrue(outgoing.length > 0);
 
-		for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
-			try {
-				socket = new DatagramSocket(portBase + linkAddress, localHost);
-				break;
-			}
-			catch (SocketException e) {
-			}
-		}
+		int receiveQueue = Config.getInteger("NetworkLink.receiveQueue", 16);
+		Lib.assertTrue(receiveQueue > 0);
+
+		incoming = new byte[receiveQueue][];
+		incomingLengths = new int[receiveQueue];
+		for (int i = 0; i < receiveQueue; i++)
+			incoming[i] = new byte[Packet.maxPacketLength];
+
+		latency = Config.getInteger("NetworkLink.latency", 0);
+		ticksPerByte = Config.getInteger("NetworkLink.ticksPerByte", 0);
+		Lib.assertTrue(latency >= 0 && ticksPerByte >= 0);
 
-		if (socket == null) {
+		transport = (LinkTransport) Lib.constructObject(Config.getString(
+				"NetworkLink.transport", "nachos.machine.SocketTransport"));
+
+		int address = transport.open(this);
+
+		if (address < 0) {
 			System.out.println("");
 			System.out.println("Unable to acquire a link address!");
 			Lib.assertNotReached();
 		}
 
+		linkAddress = (byte) address;
+
 		System.out.print("(" + linkAddress + ")");
 
 		receiveInterrupt = new Runnable() {
@@ -117,15 +127,18 @@ public class NetworkLink {
 			}
 		};
 
-		scheduleReceiveInterrupt();
-
-		Thread receiveThread = new Thread(new Runnable() {
-			public void run() {
-				receiveLoop();
-			}
-		});
+		receiveHandle = privilege.interrupt.register("network recv",
+				receiveInterrupt);
+		sendHandle = privilege.interrupt.register("network send",
+				sendInterrupt);
+		wireHandle = privilege.interrupt.register("network wire",
+				new Runnable() {
+					public void run() {
+						transmit(inFlight.removeFirst());
+					}
+				});
 
-		receiveThread.start();
+		scheduleReceiveInterrupt();
 	}
 
 	/**
@@ -146,8 +159,8 @@ public class NetworkLink {
 	 * 
 	 * <p>
 	 * The send interrupt handler is called every time a packet sent with
-	 * <tt>send()</tt> is finished being sent. This means that another packet
-	 * can be sent.
+	 * <tt>send()</tt> is finished being sent. This means that there is room
+	 * for another packet in the transmit queue.
 	 * 
 	 * @param receiveInterruptHandler the callback to call when a packet
 	 * arrives.
@@ -161,25 +174,34 @@ public class NetworkLink {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
-				receiveInterrupt);
+		privilege.interrupt.schedule(Stats.NetworkTime, receiveHandle);
 	}
 
 	private synchronized void receiveInterrupt() {
 		Lib.assertTrue(incomingPacket == null);
 
-		if (incomingBytes != null) {
+		if (numIncoming > 0) {
+			privilege.stats.maxReceiveQueue = Math.max(
+					privilege.stats.maxReceiveQueue, numIncoming);
+
 			if (Machine.autoGrader().canReceivePacket(privilege)) {
 				try {
-					incomingPacket = new Packet(incomingBytes);
+					incomingPacket = new Packet(incoming[firstIncoming],
+							incomingLengths[firstIncoming]);
+
+					// the packet is a view of this buffer, so replace it; this
+					// allocation is the one cost left per received packet
+					incoming[firstIncoming] = new byte[Packet.maxPacketLength];
 
 					privilege.stats.numPacketsReceived++;
+					privilege.stats.numBytesReceived += incomingPacket.length();
 				}
 				catch (MalformedPacketException e) {
 				}
 			}
 
-			incomingBytes = null;
+			firstIncoming = (firstIncoming + 1) % incoming.length;
+			numIncoming--;
 			notify();
 
 			if (incomingPacket == null)
@@ -209,97 +231,183 @@ public class NetworkLink {
 		return p;
 	}
 
-	private void receiveLoop() {
-		while (true) {
-			synchronized (this) {
-				while (incomingBytes != null) {
-					try {
-						wait();
-					}
-					catch (InterruptedException e) {
-					}
-				}
-			}
-
-			byte[] packetBytes;
-
+	/**
+	 * Called by a transport's receive thread to get the next free buffer in
+	 * the receive ring, waiting while the ring is full. The buffer stays free
+	 * until <tt>received()</tt> is called, and only one thread may fill the
+	 * ring this way.
+	 * 
+	 * @return a buffer of <tt>Packet.maxPacketLength</tt> bytes.
+	 */
+	synchronized byte[] receiveBuffer() {
+		while (numIncoming == incoming.length) {
 			try {
-				byte[] buffer = new byte[Packet.maxPacketLength];
+				wait();
+			}
+			catch (InterruptedException e) {
+			}
+		}
 
-				DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+		return incoming[(firstIncoming + numIncoming) % incoming.length];
+	}
 
-				socket.receive(dp);
+	/**
+	 * Called by a transport once it has received a packet into the buffer
+	 * returned by <tt>receiveBuffer()</tt>.
+	 * 
+	 * @param length the number of bytes received.
+	 */
+	synchronized void received(int length) {
+		incomingLengths[(firstIncoming + numIncoming) % incoming.length] = length;
+		numIncoming++;
+	}
 
-				packetBytes = new byte[dp.getLength()];
+	/**
+	 * Called by a transport to copy a packet into the receive ring without
+	 * waiting. The packet is dropped if the ring is full.
+	 * 
+	 * @param bytes the array holding the packet.
+	 * @param length the number of bytes in the packet.
+	 */
+	synchronized void deliver(byte[] bytes, int length) {
+		if (numIncoming == incoming.length || length > Packet.maxPacketLength) {
+			privilege.stats.numPacketsOverrun++;
+			return;
+		}
 
-				System.arraycopy(buffer, 0, packetBytes, 0, packetBytes.length);
-			}
-			catch (IOException e) {
-				return;
-			}
+		System.arraycopy(bytes, 0, receiveBuffer(), 0, length);
+		received(length);
+	}
 
-			synchronized (this) {
-				incomingBytes = packetBytes;
-			}
-		}
+	/**
+	 * Return the number of received packets waiting in the receive ring for
+	 * the kernel.
+	 * 
+	 * @return the receive queue depth.
+	 */
+	public synchronized int getReceiveQueueDepth() {
+		return numIncoming;
 	}
 
+	/**
+	 * Schedule the end of the transmission of the packet at the head of the
+	 * transmit queue.
+	 */
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				sendInterrupt);
+		long ticks = Stats.NetworkTime + ticksPerByte
+				* outgoing[firstOutgoing].length();
+
+		privilege.stats.networkSendTicks += ticks;
+		privilege.interrupt.schedule(ticks, sendHandle);
 	}
 
 	private void sendInterrupt() {
-		Lib.assertTrue(outgoingPacket != null);
+		Lib.assertTrue(numOutgoing > 0);
+
+		Packet p = removeOutgoing();
 
 		// randomly drop packets, according to its reliability
 		if (Machine.autoGrader().canSendPacket(privilege)
 				&& Lib.random() <= reliability) {
 			// ok, no drop
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					sendPacket();
-				}
-			});
+			if (latency == 0) {
+				transmit(p);
+			}
+			else {
+				inFlight.add(p);
+				privilege.interrupt.schedule(latency, wireHandle);
+			}
 		}
 		else {
-			outgoingPacket = null;
+			privilege.stats.numPacketsDropped++;
 		}
 
+		if (numOutgoing > 0)
+			scheduleSendInterrupt();
+
 		if (sendInterruptHandler != null)
 			sendInterruptHandler.run();
 	}
 
-	private void sendPacket() {
-		Packet p = outgoingPacket;
-		outgoingPacket = null;
+	private void transmit(final Packet p) {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				sendPacket(p);
+			}
+		});
+	}
 
+	private void sendPacket(Packet p) {
 		try {
-			socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-					localHost, portBase + p.dstLink));
+			transport.send(p.packetBytes, p.length(), p.dstLink);
 
 			privilege.stats.numPacketsSent++;
+			privilege.stats.numBytesSent += p.length();
 		}
 		catch (IOException e) {
 		}
 	}
 
+	private Packet removeOutgoing() {
+		Packet p = outgoing[firstOutgoing];
+		outgoing[firstOutgoing] = null;
+		firstOutgoing = (firstOutgoing + 1) % outgoing.length;
+		numOutgoing--;
+		return p;
+	}
+
 	/**
-	 * Send another packet. If a packet is already being sent, the result is not
-	 * defined.
+	 * Send another packet. Packets are sent in order, one every
+	 * <tt>Stats.NetworkTime</tt> ticks. If the transmit queue is full, the
+	 * packet is dropped, as if the network had lost it.
 	 * 
 	 * @param pkt the packet to send.
 	 */
 	public void send(Packet pkt) {
-		if (outgoingPacket == null)
+		trySend(pkt);
+	}
+
+	/**
+	 * Queue a packet to be sent, if there is room in the transmit queue.
+	 * 
+	 * <p>
+	 * Like the kernel's other calls into the machine, this is atomic with
+	 * respect to this link's interrupts, which are only delivered when the
+	 * machine advances its clock.
+	 * 
+	 * @param pkt the packet to send.
+	 * @return <tt>true</tt> if the packet was queued, or <tt>false</tt> if the
+	 * transmit queue was full.
+	 */
+	public boolean trySend(Packet pkt) {
+		if (numOutgoing == outgoing.length)
+			return false;
+
+		outgoing[(firstOutgoing + numOutgoing) % outgoing.length] = pkt;
+		numOutgoing++;
+
+		if (numOutgoing == 1)
 			scheduleSendInterrupt();
 
-		outgoingPacket = pkt;
+		return true;
+	}
+
+	/**
+	 * Return the number of packets the transmit queue can hold.
+	 * 
+	 * @return the depth of the transmit queue.
+	 */
+	public int getTransmitQueueDepth() {
+		return outgoing.length;
 	}
 
 	private static final int hash;
 
-	private static final int portBase;
+	/**
+	 * The first of the UDP ports used by the links on this network. Link
+	 * address <i>n</i> uses port <tt>portBase + </tt><i>n</i>.
+	 */
+	static final int portBase;
 
 	/**
 	 * The address of the network to which are attached all network links in
@@ -321,23 +429,39 @@ public class NetworkLink {
 
 	private Runnable sendInterrupt;
 
+	private int receiveHandle, sendHandle, wireHandle;
+
 	private Runnable receiveInterruptHandler = null;
 
 	private Runnable sendInterruptHandler = null;
 
-	private InetAddress localHost;
-
-	private DatagramSocket socket;
+	private LinkTransport transport;
 
 	private byte linkAddress;
 
 	private double reliability;
 
-	private byte[] incomingBytes = null;
+	private int latency, ticksPerByte;
+
+	/** Packets transmitted but still propagating, in order of arrival. */
+	private LinkedList<Packet> inFlight = new LinkedList<Packet>();
+
+	/**
+	 * The receive ring, preallocated buffers that datagrams are received into.
+	 * A buffer handed to the kernel as a packet view is replaced by a newly
+	 * allocated one, never reused, so receiving is copy-free but still
+	 * allocates one <tt>Packet.maxPacketLength</tt> buffer per packet.
+	 */
+	private byte[][] incoming;
+
+	private int[] incomingLengths;
+
+	private int firstIncoming = 0, numIncoming = 0;
 
 	private Packet incomingPacket = null;
 
-	private Packet outgoingPacket = null;
+	/** The transmit queue, a ring of packets waiting to be sent. */
+	private Packet[] outgoing;
 
-	private boolean sendBusy = false;
+	private int firstOutgoing = 0, numOutgoing = 0;
 }
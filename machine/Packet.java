@@ -26,6 +26,7 @@ public class Packet {
 		this.dstLink = dstLink;
 		this.srcLink = srcLink;
 		this.contents = contents;
+		this.contentsLength = contents.length;
 
 		packetBytes = new byte[headerLength + contents.length];
 
@@ -46,37 +47,116 @@ public class Packet {
 	 * @param packetBytes the bytes making up this packet.
 	 */
 	public Packet(byte[] packetBytes) throws MalformedPacketException {
-		this.packetBytes = packetBytes;
+		this(packetBytes, packetBytes.length);
+
+		view = false;
+		contents = new byte[contentsLength];
+		System.arraycopy(packetBytes, headerLength, contents, 0,
+				contents.length);
+	}
+
+	/**
+	 * Allocate a view of a packet received from the network, without copying
+	 * it. The packet's contents are left in <i>buffer</i>, at
+	 * <tt>contentsOffset</tt>, and <tt>contents</tt> is <tt>null</tt> until
+	 * <tt>getContents()</tt> is called.
+	 * 
+	 * @param buffer the buffer holding the bytes making up this packet, which
+	 * becomes <tt>packetBytes</tt>.
+	 * @param length the number of bytes in the buffer that belong to this
+	 * packet.
+	 */
+	public Packet(byte[] buffer, int length) throws MalformedPacketException {
+		this.packetBytes = buffer;
 
 		// make sure we have a valid header
-		if (packetBytes.length < headerLength
-				|| packetBytes[0] != NetworkLink.networkID
-				|| packetBytes[1] < 0 || packetBytes[1] >= linkAddressLimit
-				|| packetBytes[2] < 0 || packetBytes[2] >= linkAddressLimit
-				|| packetBytes[3] < 0
-				|| packetBytes[3] > packetBytes.length - 4)
+		if (length < headerLength || length > buffer.length
+				|| buffer[0] != NetworkLink.networkID
+				|| buffer[1] < 0 || buffer[1] >= linkAddressLimit
+				|| buffer[2] < 0 || buffer[2] >= linkAddressLimit
+				|| buffer[3] < 0
+				|| buffer[3] > length - 4)
 			throw new MalformedPacketException();
 
-		dstLink = packetBytes[1];
-		srcLink = packetBytes[2];
+		dstLink = buffer[1];
+		srcLink = buffer[2];
+		contentsLength = buffer[3];
+		view = true;
+	}
 
-		contents = new byte[packetBytes[3]];
-		System.arraycopy(packetBytes, headerLength, contents, 0,
-				contents.length);
+	/**
+	 * Test whether this packet is a view of a buffer received from the
+	 * network, rather than a packet built with its contents copied.
+	 * 
+	 * @return <tt>true</tt> if this packet is a view.
+	 */
+	public boolean isView() {
+		return view;
+	}
+
+	/**
+	 * Return the number of bytes in this packet, header and contents. Only
+	 * this many bytes at the start of <tt>packetBytes</tt> belong to it; the
+	 * buffer of a view may be longer.
+	 * 
+	 * @return the length of this packet.
+	 */
+	public int length() {
+		return headerLength + contentsLength;
 	}
 
-	/** This packet, as an array of bytes that can be sent on a network. */
+	/**
+	 * Return the contents of this packet, excluding the link-layer header. For
+	 * a view, they are copied out of <tt>packetBytes</tt> the first time this
+	 * is called, and kept in <tt>contents</tt>.
+	 * 
+	 * @return the contents of this packet.
+	 */
+	public byte[] getContents() {
+		if (contents == null) {
+			contents = new byte[contentsLength];
+			System.arraycopy(packetBytes, contentsOffset, contents, 0,
+					contentsLength);
+		}
+
+		return contents;
+	}
+
+	/**
+	 * This packet, as an array of bytes that can be sent on a network. The
+	 * packet is the first <tt>length()</tt> bytes of the array.
+	 */
 	public byte[] packetBytes;
 
+	private boolean view = false;
+
 	/** The address of the destination link of this packet. */
 	public int dstLink;
 
 	/** The address of the source link of this packet. */
 	public int srcLink;
 
-	/** The contents of this packet, excluding the link-layer header. */
+	/**
+	 * The contents of this packet, excluding the link-layer header, or
+	 * <tt>null</tt> if this packet is a view whose contents have not been
+	 * asked for.
+	 * 
+	 * @deprecated Every packet received from a <tt>NetworkLink</tt> is a view,
+	 * so use <tt>getContents()</tt>, or <tt>packetBytes</tt> at
+	 * <tt>contentsOffset</tt>.
+	 */
+	@Deprecated
 	public byte[] contents;
 
+	/**
+	 * The index of the first byte of this packet's contents in
+	 * <tt>packetBytes</tt>.
+	 */
+	public final int contentsOffset = headerLength;
+
+	/** The number of bytes in this packet's contents. */
+	public int contentsLength;
+
 	/**
 	 * The number of bytes in a link-layer packet header. The header is
 	 * formatted as follows:
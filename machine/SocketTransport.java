@@ -0,0 +1,106 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+/**
+ * A link transport that sends UDP datagrams on the local host, one blocking
+ * <tt>DatagramSocket</tt> per link, with a Java thread to receive. Links on
+ * the same network use consecutive ports starting at
+ * <tt>NetworkLink.portBase</tt>, so separate JVMs on one host can talk to each
+ * other. This is the default transport.
+ */
+public class SocketTransport implements LinkTransport {
+	/**
+	 * Allocate a new socket transport.
+	 */
+	public SocketTransport() {
+	}
+
+	public int open(NetworkLink link) {
+		this.link = link;
+
+		localHost = localHost();
+
+		int linkAddress;
+		for (linkAddress = 0; linkAddress < Packet.linkAddressLimit; linkAddress++) {
+			try {
+				socket = new DatagramSocket(NetworkLink.portBase + linkAddress,
+						localHost);
+				break;
+			}
+			catch (SocketException e) {
+			}
+		}
+
+		if (socket == null)
+			return -1;
+
+		Thread receiveThread = new Thread(new Runnable() {
+			public void run() {
+				receiveLoop();
+			}
+		});
+
+		receiveThread.start();
+
+		return linkAddress;
+	}
+
+	/**
+	 * Receive datagrams straight into the free buffers of the link's receive
+	 * ring.
+	 */
+	private void receiveLoop() {
+		DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+
+		while (true) {
+			dp.setData(link.receiveBuffer());
+
+			try {
+				socket.receive(dp);
+			}
+			catch (IOException e) {
+				return;
+			}
+
+			link.received(dp.getLength());
+		}
+	}
+
+	public void send(byte[] bytes, int length, int dstLink) throws IOException {
+		socket.send(new DatagramPacket(bytes, length, localHost,
+				NetworkLink.portBase + dstLink));
+	}
+
+	/**
+	 * Return the address of the local host, which every link on the network
+	 * shares.
+	 */
+	static InetAddress localHost() {
+		InetAddress localHost;
+
+		try {
+			localHost = InetAddress.getLocalHost();
+		}
+		catch (UnknownHostException e) {
+			localHost = null;
+		}
+
+		Lib.assertTrue(localHost != null);
+
+		return localHost;
+	}
+
+	private NetworkLink link;
+
+	private InetAddress localHost;
+
+	private DatagramSocket socket = null;
+}
@@ -32,6 +32,11 @@ public class StandardConsole implements SerialConsole {
 			}
 		};
 
+		receiveHandle = privilege.interrupt.register("console read",
+				receiveInterrupt);
+		sendHandle = privilege.interrupt.register("console write",
+				sendInterrupt);
+
 		scheduleReceiveInterrupt();
 	}
 
@@ -42,8 +47,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				receiveInterrupt);
+		privilege.interrupt.schedule(Stats.ConsoleTime, receiveHandle);
 	}
 
 	/**
@@ -115,8 +119,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
-				sendInterrupt);
+		privilege.interrupt.schedule(Stats.ConsoleTime, sendHandle);
 	}
 
 	/**
@@ -154,6 +157,8 @@ public class StandardConsole implements SerialConsole {
 
 	private Runnable sendInterrupt;
 
+	private int receiveHandle, sendHandle;
+
 	private Runnable receiveInterruptHandler = null;
 
 	private Runnable sendInterruptHandler = null;
@@ -4,8 +4,14 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * An object that maintains Nachos runtime statistics.
+ *
+ * <p>
+ * The kernel may add reports of its own with <tt>addReport()</tt>; they are
+ * printed after these statistics, and included in their dump.
  */
 public final class Stats {
 	/**
@@ -28,8 +34,83 @@ public final class Stats {
 				+ ", TLB misses " + numTLBMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+
+		if (Machine.networkLink() != null) {
+			System.out.println("Network bytes: received " + numBytesReceived
+					+ ", sent " + numBytesSent);
+			System.out.println("Network link: dropped " + numPacketsDropped
+					+ ", overrun " + numPacketsOverrun + ", busy "
+					+ (totalTicks > 0 ? networkSendTicks * 100 / totalTicks : 0)
+					+ "%, receive queue peak " + maxReceiveQueue);
+		}
+
+		for (Report report : reports)
+			report.print();
+	}
+
+	/**
+	 * Return these statistics in a form easy for programs to read: one
+	 * statistic per line, as a name and a value separated by a space,
+	 * followed by those of each added report.
+	 *
+	 * @return the statistics.
+	 */
+	public String dump() {
+		StringBuffer dump = new StringBuffer();
+
+		dump.append("ticks.total " + totalTicks + "\n");
+		dump.append("ticks.kernel " + kernelTicks + "\n");
+		dump.append("ticks.user " + userTicks + "\n");
+		dump.append("disk.reads " + numDiskReads + "\n");
+		dump.append("disk.writes " + numDiskWrites + "\n");
+		dump.append("console.reads " + numConsoleReads + "\n");
+		dump.append("console.writes " + numConsoleWrites + "\n");
+		dump.append("paging.pageFaults " + numPageFaults + "\n");
+		dump.append("paging.tlbMisses " + numTLBMisses + "\n");
+		dump.append("link.packetsReceived " + numPacketsReceived + "\n");
+		dump.append("link.packetsSent " + numPacketsSent + "\n");
+		dump.append("link.bytesReceived " + numBytesReceived + "\n");
+		dump.append("link.bytesSent " + numBytesSent + "\n");
+		dump.append("link.packetsDropped " + numPacketsDropped + "\n");
+		dump.append("link.packetsOverrun " + numPacketsOverrun + "\n");
+		dump.append("link.sendTicks " + networkSendTicks + "\n");
+		dump.append("link.receiveQueuePeak " + maxReceiveQueue + "\n");
+
+		for (Report report : reports)
+			report.dump(dump);
+
+		return dump.toString();
+	}
+
+	/**
+	 * Add a report to be printed with these statistics.
+	 *
+	 * @param report the report to add.
+	 */
+	public static void addReport(Report report) {
+		reports.add(report);
 	}
 
+	/**
+	 * Statistics kept outside the machine, by the kernel.
+	 */
+	public interface Report {
+		/**
+		 * Print this report, for people to read.
+		 */
+		public void print();
+
+		/**
+		 * Append this report to a dump, one statistic per line, as a name and
+		 * a value separated by a space.
+		 *
+		 * @param dump the dump to append to.
+		 */
+		public void dump(StringBuffer dump);
+	}
+
+	private static LinkedList<Report> reports = new LinkedList<Report>();
+
 	/**
 	 * The total amount of simulated time that has passed since Nachos started.
 	 */
@@ -69,6 +150,33 @@ public final class Stats {
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/** The total number of bytes in the packets Nachos has sent. */
+	public long numBytesSent = 0;
+
+	/** The total number of bytes in the packets Nachos has received. */
+	public long numBytesReceived = 0;
+
+	/**
+	 * The total number of packets the network has dropped, according to its
+	 * reliability.
+	 */
+	public int numPacketsDropped = 0;
+
+	/**
+	 * The total number of packets that arrived while the receive queue was
+	 * full, and were dropped.
+	 */
+	public int numPacketsOverrun = 0;
+
+	/** The total amount of simulated time the network link spent sending. */
+	public long networkSendTicks = 0;
+
+	/**
+	 * The largest number of received packets seen waiting for the kernel at
+	 * once.
+	 */
+	public int maxReceiveQueue = 0;
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +23,12 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in <tt>nachos.conf</tt> and the JVM
+ * supports them, each TCB is backed by a virtual thread instead of a platform
+ * thread. Only one TCB ever runs at a time either way.
+ * <tt>TCB.maxThreads</tt> overrides the limit on the number of TCBs.
  */
 public final class TCB {
 	/**
@@ -39,6 +47,70 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("TCB.virtualThreads", false)) {
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					findVirtualThreadBuilder();
+				}
+			});
+
+			if (ofVirtual == null)
+				System.out.print(" (no virtual threads)");
+		}
+
+		threadLimit = Config.getInteger("TCB.maxThreads",
+				ofVirtual != null ? maxVirtualThreads : maxThreads);
+		Lib.assertTrue(threadLimit > 0);
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual()</tt> and <tt>Thread.Builder.unstarted()</tt>
+	 * by reflection, since they only exist in newer JVMs. Leaves
+	 * <tt>ofVirtual</tt> <tt>null</tt> if they are not available.
+	 * 
+	 * <p>
+	 * This also runs one throwaway virtual thread, both to make sure the JVM
+	 * will actually start one and so that its scheduler is initialized before
+	 * the security manager is enabled.
+	 */
+	private static void findVirtualThreadBuilder() {
+		try {
+			Method of = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			ofVirtual = of;
+
+			Thread warmup = newJavaThread(new Runnable() {
+				public void run() {
+				}
+			});
+			warmup.start();
+			warmup.join();
+		}
+		catch (Exception e) {
+			ofVirtual = null;
+			unstarted = null;
+		}
+	}
+
+	/**
+	 * Create a new, unstarted Java thread to run the specified target. This is
+	 * a virtual thread if they are enabled, and a platform thread otherwise.
+	 * Must be called with privilege.
+	 */
+	private static Thread newJavaThread(Runnable target) {
+		if (ofVirtual != null) {
+			try {
+				return (Thread) unstarted.invoke(ofVirtual.invoke(null), target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("unable to create a virtual thread");
+			}
+		}
+
+		return new Thread(target);
 	}
 
 	/**
@@ -68,7 +140,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +174,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -258,6 +330,15 @@ public final class TCB {
 			runningThreads.removeElement(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(0);
+
+			/*
+			 * Virtual threads are daemons, so the first TCB's Java thread has
+			 * to keep the JVM alive until the last TCB exits Nachos.
+			 */
+			if (isFirstTCB && ofVirtual != null) {
+				while (true)
+					LockSupport.park(this);
+			}
 		}
 		catch (Throwable e) {
 			System.out.print("\n");
@@ -291,32 +372,29 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Parks until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+	 * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+	 * for its turn to run. This includes the ping-pong process of starting and
+	 * destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called. <tt>park()</tt> may
+	 * return spuriously, so the flag is what decides whether we may run.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and unparking its Java thread. Used in the ping-pong process of starting
+	 * and destroying TCBs, as well as in context switching to this TCB. If the
+	 * Java thread has not parked yet, the unpark is remembered, and it will
+	 * see the flag before it parks anyway.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -346,6 +424,24 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The default maximum number of started, non-destroyed TCB's when they are
+	 * backed by virtual threads.
+	 */
+	public static final int maxVirtualThreads = 10000;
+
+	/**
+	 * The maximum number of started, non-destroyed TCB's actually enforced.
+	 * Initialized by <tt>givePrivilege()</tt> from <tt>TCB.maxThreads</tt>.
+	 */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * <tt>Thread.ofVirtual()</tt> and <tt>Thread.Builder.unstarted()</tt>, or
+	 * <tt>null</tt> if TCBs are backed by platform threads.
+	 */
+	private static Method ofVirtual = null, unstarted = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -368,7 +464,7 @@ public final class TCB {
 	 * each TCB object. TCB objects are removed only in each of the
 	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
 	 * invoked on thread termination. The maximum number of threads in
-	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+	 * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
 	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
 	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
 	 * first TCB is created, this vector is basically never empty.
@@ -401,9 +497,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. This is the only state handed from one Java thread to the next on
+	 * a context switch, so it is volatile rather than guarded by a monitor.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -38,6 +38,10 @@ public final class Timer {
 			}
 		};
 
+		timerHandle = privilege.interrupt.register("timer", timerInterrupt);
+		autoGraderHandle = privilege.interrupt.register("timerAG",
+				autoGraderInterrupt);
+
 		scheduleInterrupt();
 	}
 
@@ -74,11 +78,11 @@ public final class Timer {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
 
-		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+		privilege.interrupt.schedule(delay, timerHandle);
 	}
 
 	private void scheduleAutoGraderInterrupt() {
-		privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+		privilege.interrupt.schedule(1, autoGraderHandle);
 	}
 
 	private long lastTimerInterrupt;
@@ -87,6 +91,8 @@ public final class Timer {
 
 	private Runnable autoGraderInterrupt;
 
+	private int timerHandle, autoGraderHandle;
+
 	private Privilege privilege;
 
 	private Runnable handler = null;
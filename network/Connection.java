@@ -0,0 +1,715 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * A reliable, ordered byte stream between a port on this machine and a port on
+ * another, built on the unreliable <tt>PostOffice</tt>. Both ends must create
+ * a <tt>Connection</tt> naming the other; there is no handshake.
+ *
+ * <p>
+ * Data is sent in numbered segments. Up to <tt>Connection.window</tt> segments
+ * (at most 16) may be unacknowledged at once, so a bulk transfer keeps the
+ * link busy instead of waiting a round trip for every packet. The receiver
+ * acknowledges every data segment with the next sequence number it expects,
+ * plus a bitmap of the segments after that which it has already buffered, so
+ * the sender knows exactly which segments were lost.
+ *
+ * <p>
+ * Lost segments are found by a retransmission timer, driven by the
+ * <tt>Alarm</tt>. When it expires, every unacknowledged segment that the
+ * receiver has not reported buffering is sent again, and the timeout doubles.
+ * Otherwise the timeout tracks the measured round-trip time, smoothed as in
+ * TCP. Retransmitted segments are not used to measure the round-trip time,
+ * since their acknowledgements are ambiguous. After
+ * <tt>Connection.maxRetries</tt> timeouts in a row without any progress, the
+ * other end is given up on: the connection is <i>broken</i>, and sending,
+ * receiving, and flushing no longer wait.
+ *
+ * <p>
+ * Each connection has a protocol thread that owns the local port: it handles
+ * every segment that arrives and every retransmission. No other thread may
+ * receive on that port.
+ */
+public class Connection {
+	/**
+	 * Allocate a new connection and start its protocol thread.
+	 *
+	 * @param postOffice the post office to send and receive segments through.
+	 * @param localPort the port on this machine, which the connection owns.
+	 * @param remoteLink the link address of the other end.
+	 * @param remotePort the port of the other end.
+	 */
+	public Connection(PostOffice postOffice, int localPort, int remoteLink,
+			int remotePort) {
+		Lib.assertTrue(windowSize > 0 && windowSize <= maxWindowSize);
+
+		this.postOffice = postOffice;
+		this.localPort = localPort;
+		this.localLink = Machine.networkLink().getLinkAddress();
+		this.remoteLink = remoteLink;
+		this.remotePort = remotePort;
+
+		protocolThread = new KThread(new Runnable() {
+			public void run() {
+				protocol();
+			}
+		}).setName("connection on port " + localPort);
+		protocolThread.fork();
+	}
+
+	/**
+	 * Send <i>length</i> bytes from <i>data</i>, starting at <i>offset</i>.
+	 * Waits while the window is full, and returns once every byte has been
+	 * sent at least once, or the connection has broken. Use <tt>flush()</tt>
+	 * to wait for them to be acknowledged.
+	 *
+	 * @param data the array holding the bytes to send.
+	 * @param offset the index of the first byte to send.
+	 * @param length the number of bytes to send.
+	 * @return the number of bytes sent.
+	 */
+	public int send(final byte[] data, final int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+
+		return send(new Source() {
+			public int get(byte[] payload, int payloadOffset, int n) {
+				System.arraycopy(data, offset + pos, payload, payloadOffset, n);
+				pos += n;
+				return n;
+			}
+
+			private int pos = 0;
+		}, length);
+	}
+
+	/**
+	 * Send <i>length</i> bytes taken from <i>source</i>, which fills each
+	 * segment's payload directly. Waits while the window is full, and stops
+	 * early if the source comes up short or the connection breaks.
+	 *
+	 * @param source where to get the bytes to send.
+	 * @param length the number of bytes to send.
+	 * @return the number of bytes sent.
+	 */
+	public int send(Source source, int length) {
+		Lib.assertTrue(length >= 0);
+
+		int total = 0;
+
+		while (total < length) {
+			lock.acquire();
+			Lib.assertTrue(!closed);
+
+			while (!broken && nextSeq - sendBase >= windowSize)
+				windowOpen.sleep();
+
+			if (broken) {
+				lock.release();
+				break;
+			}
+
+			int n = Math.min(length - total, maxSegmentLength);
+			byte[] payload = new byte[n];
+			int actual = source.get(payload, 0, n);
+			if (actual <= 0) {
+				lock.release();
+				break;
+			}
+
+			if (actual < n) {
+				byte[] trimmed = new byte[actual];
+				System.arraycopy(payload, 0, trimmed, 0, actual);
+				payload = trimmed;
+			}
+			total += actual;
+
+			Segment segment = new Segment(nextSeq++, payload);
+			window[segment.seq % windowSize] = segment;
+
+			MailMessage mail = buildMessage(segment);
+			if (retransmitTimer == null)
+				armTimer();
+
+			lock.release();
+
+			postOffice.send(mail);
+
+			if (actual < n)
+				break;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Receive up to <i>length</i> bytes into <i>data</i>, starting at
+	 * <i>offset</i>. Waits until at least one byte has arrived.
+	 *
+	 * @param data the array to receive the bytes.
+	 * @param offset the index at which to store the first byte.
+	 * @param length the maximum number of bytes to receive.
+	 * @return the number of bytes received.
+	 */
+	public int receive(final byte[] data, final int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+
+		return receive(new Sink() {
+			public int put(byte[] payload, int payloadOffset, int n) {
+				System.arraycopy(payload, payloadOffset, data, offset + pos, n);
+				pos += n;
+				return n;
+			}
+
+			private int pos = 0;
+		}, length, true);
+	}
+
+	/**
+	 * Receive up to <i>length</i> bytes, handing them to <i>sink</i> straight
+	 * from the segments they arrived in. Stops early if the sink takes fewer
+	 * bytes than it is offered; the rest stay to be received later.
+	 *
+	 * @param sink where to put the bytes received.
+	 * @param length the maximum number of bytes to receive.
+	 * @param block <tt>true</tt> to wait until at least one byte has arrived
+	 * or the connection has broken, <tt>false</tt> to return 0 at once if
+	 * none has.
+	 * @return the number of bytes received.
+	 */
+	public int receive(Sink sink, int length, boolean block) {
+		Lib.assertTrue(length >= 0);
+
+		lock.acquire();
+
+		while (block && !broken && readable.isEmpty())
+			dataAvailable.sleep();
+
+		int total = 0;
+		while (total < length && !readable.isEmpty()) {
+			byte[] payload = readable.getFirst();
+			int n = Math.min(length - total, payload.length - readOffset);
+			int actual = Math.max(sink.put(payload, readOffset, n), 0);
+			total += actual;
+			readOffset += actual;
+
+			if (readOffset == payload.length) {
+				readable.removeFirst();
+				readOffset = 0;
+			}
+
+			if (actual < n)
+				break;
+		}
+
+		lock.release();
+
+		return total;
+	}
+
+	/**
+	 * Return the port on this machine that this connection owns.
+	 *
+	 * @return the local port.
+	 */
+	public int localPort() {
+		return localPort;
+	}
+
+	/**
+	 * Wait until every byte sent on this connection has been acknowledged,
+	 * or the connection has broken.
+	 *
+	 * @return <tt>true</tt> if every byte was acknowledged, or <tt>false</tt>
+	 * if the other end stopped answering first.
+	 */
+	public boolean flush() {
+		lock.acquire();
+
+		while (!broken && sendBase != nextSeq)
+			windowOpen.sleep();
+
+		boolean flushed = (sendBase == nextSeq);
+
+		lock.release();
+
+		return flushed;
+	}
+
+	/**
+	 * Flush this connection, then stop its protocol thread and release its
+	 * port. The other end is not told, and this end no longer acknowledges
+	 * anything it sends. Returns even if the other end never acknowledges,
+	 * once the connection breaks.
+	 */
+	public void close() {
+		flush();
+
+		lock.acquire();
+		closed = true;
+		lock.release();
+
+		wakeup.V();
+		protocolThread.join();
+	}
+
+	/**
+	 * Test whether the other end has been given up on.
+	 *
+	 * @return <tt>true</tt> if the connection is broken.
+	 */
+	public boolean isBroken() {
+		return broken;
+	}
+
+	/**
+	 * Return the number of segments retransmitted so far.
+	 *
+	 * @return the number of retransmissions.
+	 */
+	public int retransmissions() {
+		return retransmissions;
+	}
+
+	/**
+	 * Return the current retransmission timeout.
+	 *
+	 * @return the number of ticks after which an unacknowledged segment is
+	 * sent again.
+	 */
+	public long retransmitTimeout() {
+		return rto;
+	}
+
+	/**
+	 * Handle arriving segments and retransmission timeouts until this
+	 * connection is closed.
+	 */
+	private void protocol() {
+		Selector selector = new Selector();
+		selector.add(postOffice.mailbox(localPort));
+		selector.add(wakeup);
+
+		while (true) {
+			selector.select();
+
+			MailMessage mail;
+			while ((mail = postOffice.tryReceive(localPort)) != null)
+				handleSegment(mail);
+
+			while (wakeup.tryP()) {
+				lock.acquire();
+				boolean done = closed;
+				LinkedList<MailMessage> resend = timerExpired ? retransmit()
+						: null;
+				lock.release();
+
+				if (done)
+					return;
+
+				if (resend != null) {
+					for (MailMessage segment : resend)
+						postOffice.send(segment);
+				}
+			}
+		}
+	}
+
+	private void handleSegment(MailMessage mail) {
+		if (mail.contentsLength < headerLength
+				|| mail.packet.srcLink != remoteLink
+				|| mail.srcPort != remotePort)
+			return;
+
+		// parse the segment in place, in the buffer it was received into
+		byte[] bytes = mail.buffer;
+		int offset = mail.contentsOffset;
+		int flags = bytes[offset];
+		int seq16 = readShort(bytes, offset + 1);
+		int ack16 = readShort(bytes, offset + 3);
+		int sack = readShort(bytes, offset + 5);
+
+		MailMessage ack = null;
+
+		lock.acquire();
+
+		if ((flags & flagAck) != 0)
+			handleAck(unwrap(ack16, sendBase), sack);
+
+		if ((flags & flagData) != 0) {
+			handleData(unwrap(seq16, rcvNext), bytes, offset + headerLength,
+					mail.contentsLength - headerLength);
+			ack = buildMessage(null);
+		}
+
+		lock.release();
+
+		if (ack != null)
+			postOffice.send(ack);
+	}
+
+	/**
+	 * Process the acknowledgement fields of an arriving segment. The lock
+	 * must be held.
+	 */
+	private void handleAck(int ack, int sack) {
+		if (ack - sendBase > 0 && ack - nextSeq <= 0) {
+			Segment newest = window[(ack - 1) % windowSize];
+			if (!newest.retransmitted)
+				sampleRTT(Machine.timer().getTime() - newest.sentTime);
+
+			for (int seq = sendBase; seq != ack; seq++)
+				window[seq % windowSize] = null;
+			sendBase = ack;
+			timeouts = 0;
+
+			cancelTimer();
+			if (sendBase != nextSeq)
+				armTimer();
+
+			windowOpen.wakeAll();
+		}
+
+		for (int i = 0; i < maxWindowSize; i++) {
+			if ((sack & (1 << i)) == 0)
+				continue;
+
+			Segment segment = window[(ack + 1 + i) % windowSize];
+			if (segment != null && segment.seq == ack + 1 + i)
+				segment.sacked = true;
+		}
+	}
+
+	/**
+	 * Buffer an arriving data segment and deliver whatever is now in order.
+	 * Segments outside the receive window are dropped, as are new segments
+	 * while too much in-order data is waiting to be read; the sender will
+	 * retransmit them. The payload is the <i>length</i> bytes at <i>offset</i>
+	 * in <i>bytes</i>. The lock must be held.
+	 */
+	private void handleData(int seq, byte[] bytes, int offset, int length) {
+		int ahead = seq - rcvNext;
+
+		if (ahead >= 0 && ahead < windowSize && readable.size() < maxReadable) {
+			if (reorder[seq % windowSize] == null) {
+				byte[] payload = new byte[length];
+				System.arraycopy(bytes, offset, payload, 0, length);
+				reorder[seq % windowSize] = payload;
+			}
+		}
+
+		boolean delivered = false;
+		while (reorder[rcvNext % windowSize] != null) {
+			readable.add(reorder[rcvNext % windowSize]);
+			reorder[rcvNext % windowSize] = null;
+			rcvNext++;
+			delivered = true;
+		}
+
+		if (delivered)
+			dataAvailable.wakeAll();
+	}
+
+	/**
+	 * Update the smoothed round-trip time and its variance with a new sample,
+	 * and recompute the retransmission timeout from them. The lock must be
+	 * held.
+	 */
+	private void sampleRTT(long rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		}
+		else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+
+		rto = srtt + Math.max(Stats.TimerTicks, 4 * rttvar);
+		rto = Math.min(Math.max(rto, minRTO), maxRTO);
+	}
+
+	/**
+	 * Called by the protocol thread when the retransmission timer expires.
+	 * Back off the timeout and restart the timer, and return the segments to
+	 * send again. If the other end has not answered for too long, break the
+	 * connection instead. The lock must be held.
+	 */
+	private LinkedList<MailMessage> retransmit() {
+		timerExpired = false;
+		retransmitTimer = null;
+
+		LinkedList<MailMessage> resend = new LinkedList<MailMessage>();
+
+		if (sendBase == nextSeq || broken)
+			return resend;
+
+		if (++timeouts > maxRetries) {
+			Lib.debug(dbgNet, "connection on port " + localPort
+					+ " broken after " + maxRetries + " retries");
+
+			broken = true;
+			windowOpen.wakeAll();
+			dataAvailable.wakeAll();
+			return resend;
+		}
+
+		for (int seq = sendBase; seq != nextSeq; seq++) {
+			Segment segment = window[seq % windowSize];
+			if (!segment.sacked) {
+				segment.retransmitted = true;
+				resend.add(buildMessage(segment));
+				retransmissions++;
+			}
+		}
+
+		rto = Math.min(rto * 2, maxRTO);
+		armTimer();
+
+		return resend;
+	}
+
+	private void armTimer() {
+		retransmitTimer = ThreadedKernel.alarm.schedule(rto, new Runnable() {
+			public void run() {
+				timerExpired = true;
+				wakeup.V();
+			}
+		});
+	}
+
+	private void cancelTimer() {
+		if (retransmitTimer != null) {
+			retransmitTimer.cancel();
+			retransmitTimer = null;
+		}
+
+		// the timer may have fired before the protocol thread got to it
+		timerExpired = false;
+	}
+
+	/**
+	 * Build the message carrying <i>segment</i>, or a bare acknowledgement if
+	 * <i>segment</i> is <tt>null</tt>. Every message acknowledges what this
+	 * end has received so far. The lock must be held.
+	 */
+	private MailMessage buildMessage(Segment segment) {
+		int length = (segment != null) ? segment.payload.length : 0;
+		byte[] contents = new byte[headerLength + length];
+
+		contents[0] = (byte) (flagAck | (segment != null ? flagData : 0));
+		writeShort(contents, 1, segment != null ? segment.seq : 0);
+		writeShort(contents, 3, rcvNext);
+
+		int sack = 0;
+		for (int i = 0; i < maxWindowSize && i + 1 < windowSize; i++) {
+			if (reorder[(rcvNext + 1 + i) % windowSize] != null)
+				sack |= 1 << i;
+		}
+		writeShort(contents, 5, sack);
+
+		if (segment != null) {
+			System.arraycopy(segment.payload, 0, contents, headerLength, length);
+			segment.sentTime = Machine.timer().getTime();
+		}
+
+		try {
+			return new MailMessage(remoteLink, remotePort, localLink,
+					localPort, contents);
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	/**
+	 * Return the sequence number nearest <i>reference</i> whose low 16 bits
+	 * are <i>value</i>.
+	 */
+	private static int unwrap(int value, int reference) {
+		return reference + (short) (value - reference);
+	}
+
+	private static int readShort(byte[] array, int offset) {
+		return ((array[offset] & 0xFF) << 8) | (array[offset + 1] & 0xFF);
+	}
+
+	private static void writeShort(byte[] array, int offset, int value) {
+		array[offset] = (byte) (value >> 8);
+		array[offset + 1] = (byte) value;
+	}
+
+	/**
+	 * Where <tt>send()</tt> gets the bytes it sends, so they can be copied
+	 * straight from their origin, such as a user process's memory.
+	 */
+	public interface Source {
+		/**
+		 * Copy up to <i>length</i> bytes into <i>data</i>, starting at
+		 * <i>offset</i>.
+		 *
+		 * @return the number of bytes copied.
+		 */
+		public int get(byte[] data, int offset, int length);
+	}
+
+	/**
+	 * Where <tt>receive()</tt> puts the bytes it receives, so they can be
+	 * copied straight to their destination, such as a user process's memory.
+	 */
+	public interface Sink {
+		/**
+		 * Take the <i>length</i> bytes of <i>data</i> starting at
+		 * <i>offset</i>.
+		 *
+		 * @return the number of bytes taken.
+		 */
+		public int put(byte[] data, int offset, int length);
+	}
+
+	/**
+	 * A data segment that has been sent but not yet acknowledged.
+	 */
+	private static class Segment {
+		Segment(int seq, byte[] payload) {
+			this.seq = seq;
+			this.payload = payload;
+		}
+
+		int seq;
+
+		byte[] payload;
+
+		long sentTime;
+
+		boolean retransmitted = false, sacked = false;
+	}
+
+	/**
+	 * Send a few kilobytes between two connections on this machine and check
+	 * that they arrive intact and in order, however unreliable the network.
+	 *
+	 * @param postOffice the post office to use.
+	 */
+	public static void selfTest(PostOffice postOffice) {
+		int link = Machine.networkLink().getLinkAddress();
+
+		final Connection a = new Connection(postOffice, 2, link, 3);
+		final Connection b = new Connection(postOffice, 3, link, 2);
+		final int n = 4096;
+		long startTime = Machine.timer().getTime();
+
+		KThread sender = new KThread(new Runnable() {
+			public void run() {
+				byte[] data = new byte[100];
+				for (int i = 0; i < n; i += data.length) {
+					for (int j = 0; j < data.length; j++)
+						data[j] = (byte) (i + j);
+					a.send(data, 0, Math.min(data.length, n - i));
+				}
+				a.flush();
+			}
+		}).setName("connection test sender");
+		sender.fork();
+
+		byte[] data = new byte[64];
+		int received = 0;
+		while (received < n) {
+			int count = b.receive(data, 0, data.length);
+			for (int j = 0; j < count; j++) {
+				Lib.assertTrue(data[j] == (byte) (received + j),
+						"Connection corrupted or reordered data.");
+			}
+			received += count;
+		}
+
+		sender.join();
+		a.close();
+		b.close();
+
+		System.out.println("Connection test: " + n + " bytes in "
+				+ (Machine.timer().getTime() - startTime) + " ticks, "
+				+ a.retransmissions() + " retransmissions, timeout "
+				+ a.retransmitTimeout() + " ticks");
+	}
+
+	private PostOffice postOffice;
+
+	private int localPort, localLink, remoteLink, remotePort;
+
+	private KThread protocolThread;
+
+	private Lock lock = new Lock("connection lock");
+
+	private Condition2 windowOpen = new Condition2(lock);
+
+	private Condition2 dataAvailable = new Condition2(lock);
+
+	/** V'd when the retransmission timer expires or the connection closes. */
+	private Semaphore wakeup = new Semaphore(0);
+
+	private boolean closed = false, timerExpired = false;
+
+	/** Set once the other end has stopped answering. */
+	private boolean broken = false;
+
+	/** Timeouts in a row without any new segment acknowledged. */
+	private int timeouts = 0;
+
+	private Alarm.Timeout retransmitTimer = null;
+
+	/** Unacknowledged segments, indexed by sequence number. */
+	private Segment[] window = new Segment[windowSize];
+
+	private int sendBase = 0, nextSeq = 0;
+
+	/** Segments received ahead of <tt>rcvNext</tt>. */
+	private byte[][] reorder = new byte[windowSize][];
+
+	private int rcvNext = 0;
+
+	/** In-order data waiting to be read. */
+	private LinkedList<byte[]> readable = new LinkedList<byte[]>();
+
+	private int readOffset = 0;
+
+	private long rto = initialRTO, srtt = -1, rttvar = 0;
+
+	private int retransmissions = 0;
+
+	private static final int flagData = 1, flagAck = 2;
+
+	/**
+	 * The number of bytes in a segment header, which follows the mail header:
+	 * flags (1 byte), sequence number (2), acknowledgement number (2), and a
+	 * bitmap of the segments after the acknowledged one that have been
+	 * received (2).
+	 */
+	private static final int headerLength = 7;
+
+	private static final int maxSegmentLength = MailMessage.maxContentsLength
+			- headerLength;
+
+	private static final int maxWindowSize = 16;
+
+	private static final int windowSize = Config.getInteger(
+			"Connection.window", 8);
+
+	private static final int maxReadable = 4 * windowSize;
+
+	private static final long initialRTO = Config.getInteger(
+			"Connection.rto", 2000);
+
+	private static final long minRTO = Stats.TimerTicks, maxRTO = 64000;
+
+	private static final int maxRetries = Config.getInteger(
+			"Connection.maxRetries", 8);
+
+	private static final char dbgNet = 'n';
+}
@@ -6,6 +6,12 @@ import nachos.machine.*;
  * A mail message. Includes a packet header, a mail header, and the actual
  * payload.
  * 
+ * <p>
+ * A message may be up to <tt>maxMessageLength</tt> bytes long. One longer
+ * than <tt>maxContentsLength</tt> does not fit in a packet, so its
+ * <tt>packet</tt> carries only the link addresses, and the
+ * <tt>PostOffice</tt> sends it in fragments.
+ * 
  * @see nachos.machine.Packet
  */
 public class MailMessage {
@@ -20,46 +26,132 @@ public class MailMessage {
 	 */
 	public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
 			byte[] contents) throws MalformedPacketException {
+		initialize(dstLink, dstPort, srcLink, srcPort, contents, 0,
+				contents.length, true);
+
+		this.contents = contents;
+	}
+
+	/**
+	 * Allocate a new mail message to be sent, taking its contents from part of
+	 * an array. The contents are copied, so <i>data</i> may be reused once
+	 * this returns; <tt>contents</tt> is left <tt>null</tt>.
+	 * 
+	 * @param dstLink the destination link address.
+	 * @param dstPort the destination port.
+	 * @param srcLink the source link address.
+	 * @param srcPort the source port.
+	 * @param data the array holding the contents of the packet.
+	 * @param offset the index of the first byte of the contents in
+	 * <i>data</i>.
+	 * @param length the number of bytes of contents.
+	 */
+	public MailMessage(int dstLink, int dstPort, int srcLink, int srcPort,
+			byte[] data, int offset, int length)
+			throws MalformedPacketException {
+		initialize(dstLink, dstPort, srcLink, srcPort, data, offset, length,
+				false);
+	}
+
+	/**
+	 * Set up a message to be sent. A message that fits in a packet is copied
+	 * into it; a larger one is copied only if it may not <i>share</i>
+	 * <i>data</i>.
+	 */
+	private void initialize(int dstLink, int dstPort, int srcLink,
+			int srcPort, byte[] data, int offset, int length, boolean share)
+			throws MalformedPacketException {
 		// make sure the paramters are valid
 		if (dstPort < 0 || dstPort >= portLimit || srcPort < 0
-				|| srcPort >= portLimit || contents.length > maxContentsLength)
+				|| srcPort >= portLimit || length < 0
+				|| length > maxMessageLength)
 			throw new MalformedPacketException();
 
 		this.dstPort = (byte) dstPort;
 		this.srcPort = (byte) srcPort;
-		this.contents = contents;
+		this.contentsLength = length;
+
+		if (length > maxContentsLength) {
+			packet = new Packet(dstLink, srcLink, new byte[0]);
+
+			if (share) {
+				buffer = data;
+				contentsOffset = offset;
+			}
+			else {
+				buffer = new byte[length];
+				System.arraycopy(data, offset, buffer, 0, length);
+			}
+
+			return;
+		}
 
-		byte[] packetContents = new byte[headerLength + contents.length];
+		byte[] packetContents = new byte[headerLength + length];
 
 		packetContents[0] = (byte) dstPort;
 		packetContents[1] = (byte) srcPort;
 
-		System.arraycopy(contents, 0, packetContents, headerLength,
-				contents.length);
+		System.arraycopy(data, offset, packetContents, headerLength, length);
 
 		packet = new Packet(dstLink, srcLink, packetContents);
+
+		buffer = packet.packetBytes;
+		contentsOffset = Packet.headerLength + headerLength;
 	}
 
 	/**
 	 * Allocate a new mail message using the specified packet from the network.
+	 * If the packet is a view, as the packets returned by
+	 * <tt>NetworkLink.receive()</tt> are, the message is parsed in place:
+	 * the contents are left in <tt>packet.packetBytes</tt>, and
+	 * <tt>contents</tt> is <tt>null</tt> until <tt>getContents()</tt> is
+	 * called. Otherwise the contents are copied into <tt>contents</tt>, as
+	 * well.
 	 * 
 	 * @param packet the packet containg the mail message.
 	 */
 	public MailMessage(Packet packet) throws MalformedPacketException {
 		this.packet = packet;
 
+		byte[] bytes = packet.packetBytes;
+		int offset = packet.contentsOffset;
+
 		// make sure we have a valid header
-		if (packet.contents.length < headerLength || packet.contents[0] < 0
-				|| packet.contents[0] >= portLimit || packet.contents[1] < 0
-				|| packet.contents[1] >= portLimit)
+		if (packet.contentsLength < headerLength || bytes[offset] < 0
+				|| bytes[offset] >= portLimit || bytes[offset + 1] < 0
+				|| bytes[offset + 1] >= portLimit)
 			throw new MalformedPacketException();
 
-		dstPort = packet.contents[0];
-		srcPort = packet.contents[1];
+		dstPort = bytes[offset];
+		srcPort = bytes[offset + 1];
+
+		buffer = bytes;
+		contentsOffset = offset + headerLength;
 
-		contents = new byte[packet.contents.length - headerLength];
-		System.arraycopy(packet.contents, headerLength, contents, 0,
-				contents.length);
+		contentsLength = packet.contentsLength - headerLength;
+
+		if (!packet.isView()) {
+			contents = new byte[contentsLength];
+			System.arraycopy(bytes, contentsOffset, contents, 0,
+					contentsLength);
+		}
+	}
+
+	/**
+	 * Return the contents of this message, excluding the mail message header.
+	 * If <tt>contents</tt> is <tt>null</tt>, they are copied out of
+	 * <tt>buffer</tt> the first time this is called, and kept there.
+	 * 
+	 * @return the contents of this message.
+	 */
+	public byte[] getContents() {
+		if (contents == null) {
+			contents = new byte[contentsLength];
+			System.arraycopy(buffer, contentsOffset, contents, 0,
+					contentsLength);
+		}
+
+		return contents;
 	}
 
 	/**
@@ -67,7 +159,7 @@ public class MailMessage {
 	 */
 	public String toString() {
 		return "from (" + packet.srcLink + ":" + srcPort + ") to ("
-				+ packet.dstLink + ":" + dstPort + "), " + contents.length
+				+ packet.dstLink + ":" + dstPort + "), " + contentsLength
 				+ " bytes";
 	}
 
@@ -80,9 +172,35 @@ public class MailMessage {
 	/** The port used by this message on the source machine. */
 	public int srcPort;
 
-	/** The contents of this message, excluding the mail message header. */
+	/**
+	 * The contents of this message, excluding the mail message header, or
+	 * <tt>null</tt> if the message was parsed in place or built from part of
+	 * an array and its contents have not been asked for.
+	 * 
+	 * @deprecated Every message received by the <tt>PostOffice</tt> is parsed
+	 * in place, so use <tt>getContents()</tt>, or <tt>buffer</tt> at
+	 * <tt>contentsOffset</tt>.
+	 */
+	@Deprecated
 	public byte[] contents;
 
+	/**
+	 * The array holding this message's contents, at <tt>contentsOffset</tt>.
+	 * The contents are always found there, whether or not <tt>contents</tt>
+	 * is set. For a message that fits in a packet, this is
+	 * <tt>packet.packetBytes</tt>.
+	 */
+	public byte[] buffer;
+
+	/** The index of the first byte of this message's contents in <tt>buffer</tt>. */
+	public int contentsOffset = 0;
+
+	/** The number of bytes in this message's contents. */
+	public int contentsLength;
+
+	/** When this message was put in its mailbox. */
+	long deliveredTime;
+
 	/**
 	 * The number of bytes in a mail header. The header is formatted as follows:
 	 * 
@@ -110,6 +228,13 @@ public class MailMessage {
 	public static final int maxContentsLength = Packet.maxContentsLength
 			- headerLength;
 
+	/**
+	 * Maximum payload of a message sent in fragments: at most 255 fragments,
+	 * each carrying what is left of a packet after the fragment header.
+	 */
+	public static final int maxMessageLength = 255 * (Packet.maxContentsLength
+			- PostOffice.fragmentHeaderLength);
+
 	/**
 	 * The upper limit on mail ports. All ports fall between <tt>0</tt> and
 	 * <tt>portLimit - 1</tt>.
@@ -0,0 +1,114 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * Keeps pages in memory on behalf of other machines, so they can swap over
+ * the network instead of to their own swap files. A kernel runs a memory
+ * server instead of user programs when <tt>NetKernel.memoryServer</tt> is set;
+ * its clients name it with <tt>NetKernel.swapServer</tt>.
+ *
+ * <p>
+ * Requests arrive on <tt>port</tt> and replies go to <tt>clientPort</tt>.
+ * Every message starts with a header of an operation, a request ID, and a swap
+ * page number; a <tt>put</tt> and the reply to a <tt>get</tt> carry the page
+ * after it. Pages are larger than a packet, so the <tt>PostOffice</tt> sends
+ * them in fragments. Requests are answered one at a time, in the order they
+ * arrive.
+ */
+public class MemoryServer {
+	/**
+	 * Allocate a new memory server.
+	 *
+	 * @param postOffice the post office to serve requests through.
+	 */
+	public MemoryServer(PostOffice postOffice) {
+		this.postOffice = postOffice;
+	}
+
+	/**
+	 * Serve requests forever.
+	 */
+	public void run() {
+		System.out.println("Memory server on port " + port);
+
+		while (true) {
+			MailMessage request = postOffice.receive(port);
+			if (request.contentsLength < headerLength)
+				continue;
+
+			byte[] bytes = request.buffer;
+			int offset = request.contentsOffset;
+			int op = bytes[offset];
+			int spn = Lib.bytesToInt(bytes, offset + 5);
+			Long key = Long.valueOf(((long) request.packet.srcLink << 32) | spn);
+
+			MailMessage reply;
+
+			if (op == opPut
+					&& request.contentsLength == headerLength + Processor.pageSize) {
+				byte[] page = new byte[Processor.pageSize];
+				System.arraycopy(bytes, offset + headerLength, page, 0,
+						page.length);
+				pages.put(key, page);
+
+				reply = message(request, opPutAck, null);
+			}
+			else if (op == opGet) {
+				reply = message(request, opGetReply, pages.get(key));
+			}
+			else {
+				continue;
+			}
+
+			postOffice.send(reply);
+		}
+	}
+
+	/**
+	 * Build the reply to <i>request</i>, carrying <i>page</i> if it is not
+	 * <tt>null</tt>.
+	 */
+	private static MailMessage message(MailMessage request, byte op,
+			byte[] page) {
+		byte[] contents = new byte[headerLength
+				+ (page != null ? page.length : 0)];
+
+		contents[0] = op;
+		System.arraycopy(request.buffer, request.contentsOffset + 1, contents,
+				1, headerLength - 1);
+		if (page != null)
+			System.arraycopy(page, 0, contents, headerLength, page.length);
+
+		try {
+			return new MailMessage(request.packet.srcLink, request.srcPort,
+					request.packet.dstLink, request.dstPort, contents);
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	private PostOffice postOffice;
+
+	/** The pages kept, by client link address and swap page number. */
+	private HashMap<Long, byte[]> pages = new HashMap<Long, byte[]>();
+
+	/** The port the server receives requests on. */
+	static final int port = 7;
+
+	/** The port clients receive replies on. */
+	static final int clientPort = 8;
+
+	static final byte opPut = 1, opPutAck = 2, opGet = 3, opGetReply = 4;
+
+	/**
+	 * The number of bytes in a request or reply header: the operation, then a
+	 * request ID and a swap page number, four bytes each.
+	 */
+	static final int headerLength = 9;
+}
@@ -0,0 +1,406 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * Moves running processes between machines. Every network kernel runs one,
+ * which both sends its own processes away and takes in processes sent to it.
+ *
+ * <p>
+ * A process moves in two steps. Its state, as packed by
+ * <tt>NetProcess</tt>, goes first, then each dirty page it had in memory, one
+ * message apiece. The new machine starts the process once the last page has
+ * arrived. Pages it had swapped out stay behind: the new machine pulls each
+ * from the old one the first time it is touched, and the old machine keeps
+ * them until the process exits. The exit status goes back to the old
+ * machine, which still answers for the process to its parent.
+ *
+ * <p>
+ * All messages go to <tt>port</tt>. Each starts with an operation and a
+ * request ID, and is answered with <tt>opReply</tt> and the same ID. A
+ * request not answered within <tt>Migration.timeout</tt> ticks is sent
+ * again, with the timeout doubled each time, so every request must be safe
+ * to repeat.
+ *
+ * <p>
+ * One thread takes every message from the port and passes each reply
+ * straight to the call waiting for it. Requests are handled in order by a
+ * second thread, since starting or finishing a process takes
+ * <tt>processLock</tt>, which may be held by a thread waiting for a reply.
+ */
+public class Migration {
+	/**
+	 * Allocate a new migration service.
+	 *
+	 * @param postOffice the post office to send and receive through.
+	 */
+	public Migration(PostOffice postOffice) {
+		this.postOffice = postOffice;
+	}
+
+	/**
+	 * Start the threads that take replies and answer requests from other
+	 * machines.
+	 */
+	public void start() {
+		new KThread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}).setName("migration").fork();
+
+		new KThread(new Runnable() {
+			public void run() {
+				while (true)
+					handleRequest((MailMessage) requests.removeFirst());
+			}
+		}).setName("migration requests").fork();
+	}
+
+	/**
+	 * Send a process's state to <i>host</i>, to be followed by
+	 * <i>pages</i> pages.
+	 *
+	 * @param host the link address of the machine to move to.
+	 * @param id the process's ID on this machine.
+	 * @param pages the number of pages that will follow.
+	 * @param state the process's state, as packed by <tt>NetProcess</tt>.
+	 * @return <tt>true</tt> if <i>host</i> will take the process, or
+	 * <tt>false</tt> if it refused or did not answer.
+	 */
+	boolean sendState(int host, int id, int pages, byte[] state) {
+		byte[] body = new byte[8 + state.length];
+		Lib.bytesFromInt(body, 0, id);
+		Lib.bytesFromInt(body, 4, pages);
+		System.arraycopy(state, 0, body, 8, state.length);
+
+		MailMessage reply = call(host, opState, body, maxAttempts);
+		return reply != null && reply.contentsLength > headerLength
+				&& reply.buffer[reply.contentsOffset + headerLength] != 0;
+	}
+
+	/**
+	 * Send one page of a process whose state <i>host</i> has taken. Waits
+	 * until the page is acknowledged.
+	 *
+	 * @param host the link address of the machine the process is moving to.
+	 * @param id the process's ID on this machine.
+	 * @param vpn the virtual page number.
+	 * @param page the page's contents.
+	 */
+	void sendPage(int host, int id, int vpn, byte[] page) {
+		byte[] body = new byte[8 + page.length];
+		Lib.bytesFromInt(body, 0, id);
+		Lib.bytesFromInt(body, 4, vpn);
+		System.arraycopy(page, 0, body, 8, page.length);
+
+		call(host, opPage, body, -1);
+	}
+
+	/**
+	 * Fetch a page of a process that moved here from the machine it left.
+	 *
+	 * @param home the link address of the machine the process came from.
+	 * @param id the process's ID on that machine.
+	 * @param vpn the virtual page number.
+	 * @return the page's contents, or <tt>null</tt> if <i>home</i> does not
+	 * have it.
+	 */
+	byte[] pullPage(int home, int id, int vpn) {
+		byte[] body = new byte[8];
+		Lib.bytesFromInt(body, 0, id);
+		Lib.bytesFromInt(body, 4, vpn);
+
+		MailMessage reply = call(home, opPull, body, -1);
+		if (reply.contentsLength != headerLength + Processor.pageSize)
+			return null;
+
+		byte[] page = new byte[Processor.pageSize];
+		System.arraycopy(reply.buffer, reply.contentsOffset + headerLength,
+				page, 0, page.length);
+		return page;
+	}
+
+	/**
+	 * Tell the machine a process came from that it has exited. Gives up after
+	 * a few attempts, since that machine may have halted.
+	 *
+	 * @param home the link address of the machine the process came from.
+	 * @param id the process's ID on that machine.
+	 * @param status the exit status, or <tt>null</tt> if the process
+	 * terminated abnormally.
+	 */
+	void sendExit(int home, int id, Integer status) {
+		byte[] body = new byte[9];
+		Lib.bytesFromInt(body, 0, id);
+		body[4] = (byte) (status != null ? 1 : 0);
+		Lib.bytesFromInt(body, 5, status != null ? status.intValue() : 0);
+
+		call(home, opExit, body, maxAttempts);
+	}
+
+	/**
+	 * Remember a process that has moved away, so its swapped pages and its
+	 * exit can be handled here.
+	 *
+	 * @param process the process.
+	 */
+	void emigrated(NetProcess process) {
+		lock.acquire();
+		emigrated.put(Integer.valueOf(process.processID()), process);
+		lock.release();
+	}
+
+	/**
+	 * Send a request and wait for its reply, trying up to <i>attempts</i>
+	 * times, or forever if <i>attempts</i> is negative.
+	 */
+	private MailMessage call(int host, byte op, byte[] body, int attempts) {
+		byte[] contents = new byte[headerLength + body.length];
+		System.arraycopy(body, 0, contents, headerLength, body.length);
+		contents[0] = op;
+
+		Call call = new Call();
+
+		lock.acquire();
+		int id = nextRequestID++;
+		calls.put(Integer.valueOf(id), call);
+		lock.release();
+
+		Lib.bytesFromInt(contents, 1, id);
+
+		MailMessage request = message(host, contents);
+
+		Selector selector = new Selector();
+		selector.add(call.done);
+
+		long t = timeout;
+		for (int i = 0; attempts < 0 || i < attempts; i++) {
+			postOffice.send(request);
+			if (selector.select(t) != null)
+				break;
+
+			t = Math.min(t * 2, maxTimeout);
+		}
+
+		lock.acquire();
+		calls.remove(Integer.valueOf(id));
+		lock.release();
+
+		return call.reply;
+	}
+
+	private void serve() {
+		while (true) {
+			MailMessage mail = postOffice.receive(port);
+			if (mail.contentsLength < headerLength)
+				continue;
+
+			if (mail.buffer[mail.contentsOffset] == opReply) {
+				Integer id = Integer.valueOf(Lib.bytesToInt(mail.buffer,
+						mail.contentsOffset + 1));
+
+				lock.acquire();
+				Call call = calls.get(id);
+				if (call != null && call.reply == null) {
+					call.reply = mail;
+					call.done.V();
+				}
+				lock.release();
+			}
+			else {
+				requests.add(mail);
+			}
+		}
+	}
+
+	private void handleRequest(MailMessage request) {
+		byte[] bytes = request.buffer;
+		int offset = request.contentsOffset + headerLength;
+		int length = request.contentsLength - headerLength;
+		if (length < 8)
+			return;
+
+		int src = request.packet.srcLink;
+		int id = Lib.bytesToInt(bytes, offset);
+		Long key = Long.valueOf(((long) src << 32) | id);
+
+		switch (bytes[request.contentsOffset]) {
+		case opState: {
+			lock.acquire();
+			boolean known = arriving.containsKey(key) || arrived.containsKey(key);
+			lock.release();
+
+			if (!known) {
+				NetProcess process = NetProcess.immigrate(src, id, bytes,
+						offset + 8, length - 8);
+				if (process == null) {
+					reply(request, new byte[] { 0 });
+					return;
+				}
+
+				lock.acquire();
+				arriving.put(key, process);
+				lock.release();
+
+				startIfComplete(key, process, Lib.bytesToInt(bytes, offset + 4));
+			}
+
+			reply(request, new byte[] { 1 });
+			break;
+		}
+		case opPage: {
+			lock.acquire();
+			NetProcess process = arriving.get(key);
+			lock.release();
+
+			if (process != null && length == 8 + Processor.pageSize) {
+				process.pageArrived(Lib.bytesToInt(bytes, offset + 4), bytes,
+						offset + 8);
+				startIfComplete(key, process, -1);
+			}
+
+			reply(request, new byte[0]);
+			break;
+		}
+		case opPull: {
+			lock.acquire();
+			NetProcess process = emigrated.get(Integer.valueOf(id));
+			lock.release();
+
+			byte[] page = null;
+			if (process != null)
+				page = process.pushPage(Lib.bytesToInt(bytes, offset + 4));
+
+			reply(request, page != null ? page : new byte[0]);
+			break;
+		}
+		case opExit: {
+			if (length < 9)
+				return;
+
+			lock.acquire();
+			NetProcess process = emigrated.remove(Integer.valueOf(id));
+			lock.release();
+
+			reply(request, new byte[0]);
+
+			if (process != null) {
+				Integer status = null;
+				if (bytes[offset + 4] != 0)
+					status = Integer.valueOf(Lib.bytesToInt(bytes, offset + 5));
+				process.finishEmigration(status);
+			}
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Start an arriving process if all its pages are here. <i>pages</i> is
+	 * the number expected, if it has just become known, or -1.
+	 */
+	private void startIfComplete(Long key, NetProcess process, int pages) {
+		lock.acquire();
+		if (pages >= 0)
+			expected.put(key, Integer.valueOf(pages));
+
+		boolean complete = process.pagesArrived() == expected.get(key)
+				.intValue();
+		if (complete) {
+			arriving.remove(key);
+			expected.remove(key);
+			arrived.put(key, Boolean.TRUE);
+		}
+		lock.release();
+
+		if (complete)
+			process.resume();
+	}
+
+	private void reply(MailMessage request, byte[] body) {
+		byte[] contents = new byte[headerLength + body.length];
+		contents[0] = opReply;
+		System.arraycopy(request.buffer, request.contentsOffset + 1, contents,
+				1, headerLength - 1);
+		System.arraycopy(body, 0, contents, headerLength, body.length);
+
+		postOffice.send(message(request.packet.srcLink, contents));
+	}
+
+	private MailMessage message(int host, byte[] contents) {
+		try {
+			return new MailMessage(host, port, Machine.networkLink()
+					.getLinkAddress(), port, contents);
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	/**
+	 * A request waiting for its reply.
+	 */
+	private class Call {
+		Semaphore done = new Semaphore(0);
+
+		MailMessage reply = null;
+	}
+
+	private PostOffice postOffice;
+
+	private Lock lock = new Lock("migration");
+
+	private int nextRequestID = 0;
+
+	private HashMap<Integer, Call> calls = new HashMap<Integer, Call>();
+
+	/** Requests from other machines, waiting to be handled. */
+	private SynchList requests = new SynchList();
+
+	/**
+	 * Processes moving here and still waiting for pages, by the link address
+	 * they came from and their ID there.
+	 */
+	private HashMap<Long, NetProcess> arriving = new HashMap<Long, NetProcess>();
+
+	/** The number of pages each arriving process is waiting for. */
+	private HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+
+	/**
+	 * Processes that have finished moving here, so a repeated request for one
+	 * is not taken for a new arrival.
+	 */
+	private HashMap<Long, Boolean> arrived = new HashMap<Long, Boolean>();
+
+	/** Processes that have moved away, by their ID here. */
+	private HashMap<Integer, NetProcess> emigrated = new HashMap<Integer, NetProcess>();
+
+	/** The port migration requests and replies are sent to. */
+	static final int port = 9;
+
+	static final byte opState = 1, opPage = 2, opPull = 3, opExit = 4,
+			opReply = 5;
+
+	/**
+	 * The number of bytes in a request or reply header: the operation, then a
+	 * four-byte request ID.
+	 */
+	static final int headerLength = 5;
+
+	/** The largest state <tt>sendState()</tt> can send. */
+	static final int maxStateLength = MailMessage.maxMessageLength
+			- headerLength - 8;
+
+	private static final long timeout = Config.getInteger(
+			"Migration.timeout", 20000);
+
+	private static final long maxTimeout = 16 * timeout;
+
+	/** How many times to try requests that may give up. */
+	private static final int maxAttempts = 5;
+}
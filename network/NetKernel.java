@@ -6,6 +6,10 @@ import nachos.userprog.*;
 import nachos.vm.*;
 import nachos.network.*;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
 /**
  * A kernel with network support.
  */
@@ -24,6 +28,7 @@ public class NetKernel extends VMKernel {
 		super.initialize(args);
 
 		postOffice = new PostOffice();
+		migration = new Migration(postOffice);
 	}
 
 	/**
@@ -31,6 +36,12 @@ public class NetKernel extends VMKernel {
 	 * and sends replies. Then ping one or two hosts. Note that this test
 	 * assumes that the network is reliable (i.e. that the network's reliability
 	 * is 1.0).
+	 *
+	 * <p>
+	 * If <tt>NetKernel.selfTest</tt> is set, first test the post office,
+	 * connections, and sockets on this machine. The post office test counts
+	 * on every message arriving, so it is skipped if the network is
+	 * unreliable; the others recover from loss.
 	 */
 	public void selfTest() {
 		super.selfTest();
@@ -43,6 +54,13 @@ public class NetKernel extends VMKernel {
 
 		serverThread.fork();
 
+		if (selfTest) {
+			if (Config.getDouble("NetworkLink.reliability") == 1.0)
+				postOffice.selfTest();
+			Connection.selfTest(postOffice);
+			Socket.selfTest(postOffice);
+		}
+
 		System.out.println("Press any key to start the network test...");
 		console.readByte(true);
 
@@ -91,7 +109,9 @@ public class NetKernel extends VMKernel {
 
 			try {
 				ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
-						ping.packet.dstLink, ping.dstPort, ping.contents);
+						ping.packet.dstLink, ping.dstPort,
+						ping.buffer, ping.contentsOffset,
+						ping.contentsLength);
 			}
 			catch (MalformedPacketException e) {
 				// should never happen...
@@ -103,12 +123,401 @@ public class NetKernel extends VMKernel {
 	}
 
 	/**
-	 * Start running user programs.
+	 * Return a swap file name of this machine's own, since machines on the
+	 * network usually share a test directory.
+	 */
+	protected String swapFileName() {
+		return super.swapFileName() + "."
+				+ Machine.networkLink().getLinkAddress();
+	}
+
+	/**
+	 * Return a <tt>RemoteSwapper</tt> if <tt>NetKernel.swapServer</tt> names
+	 * a memory server, or the local swapper otherwise.
+	 */
+	protected Swapper newSwapper() {
+		if (swapServer >= 0)
+			return new RemoteSwapper(swapServer);
+
+		return super.newSwapper();
+	}
+
+	/**
+	 * Start running user programs, and take in processes moving here from
+	 * other machines. If <tt>NetKernel.memoryServer</tt> is set, serve pages
+	 * to other machines instead of running a program; if
+	 * <tt>NetKernel.computeServer</tt> is set, only run processes that move
+	 * here.
 	 */
 	public void run() {
+		migration.start();
+
+		if (memoryServer || computeServer) {
+			// a server keeps running when the processes sent to it exit
+			UserKernel.numRunningProcesses++;
+		}
+
+		if (memoryServer)
+			new MemoryServer(postOffice).run();
+
+		if (computeServer)
+			KThread.finish();
+
 		super.run();
 	}
 
+	/**
+	 * A swapper that keeps evicted pages on a <tt>MemoryServer</tt> on another
+	 * machine.
+	 *
+	 * <p>
+	 * Page writes are pipelined: <tt>writeSwap()</tt> sends the page and
+	 * returns at once, keeping a copy until the server acknowledges it, so up to
+	 * <tt>RemoteSwapper.outstanding</tt> pages can be on their way at once. A
+	 * page faulted back in before its acknowledgement is read from that copy.
+	 *
+	 * <p>
+	 * Timeouts measure the server's silence rather than the age of a request,
+	 * since a request may wait behind several pages. If nothing is heard from
+	 * the server for <tt>RemoteSwapper.timeout</tt> ticks, the unacknowledged
+	 * pages are written to the local swap file instead, and so is every later
+	 * one: the server is presumed gone. A page held only by the server must be
+	 * read from it, so a read is sent again each time the server falls silent,
+	 * with the timeout doubled, until it answers. Reads from several processes
+	 * are in flight at once.
+	 */
+	public class RemoteSwapper extends Swapper {
+		/**
+		 * Allocate a new remote swapper.
+		 *
+		 * @param server the link address of the memory server.
+		 */
+		public RemoteSwapper(int server) {
+			super();
+
+			this.server = server;
+		}
+
+		public int writeSwap(int spn, int ppn) {
+			if (serverDown) {
+				// a put still outstanding for this page is out of date
+				lock.acquire();
+				unacknowledged.remove(Integer.valueOf(spn));
+				remote.remove(Integer.valueOf(spn));
+				lock.release();
+
+				return super.writeSwap(spn, ppn);
+			}
+
+			start();
+
+			swapLock.acquire();
+			int pos = allocateSwap(spn);
+			swapLock.release();
+
+			byte[] contents = new byte[MemoryServer.headerLength
+					+ Processor.pageSize];
+			System.arraycopy(Machine.processor().getMemory(), ppn
+					* Processor.pageSize, contents, MemoryServer.headerLength,
+					Processor.pageSize);
+
+			putSlots.P();
+
+			lock.acquire();
+			Request put = newRequest(MemoryServer.opPut, pos, contents);
+			unacknowledged.put(Integer.valueOf(pos), put);
+			remote.remove(Integer.valueOf(pos));
+			pendingPuts++;
+			lock.release();
+
+			put.timer = ThreadedKernel.alarm.schedule(timeout, new Runnable() {
+				public void run() {
+					wakeup.V();
+				}
+			});
+
+			postOffice.send(put.message());
+
+			return pos;
+		}
+
+		public void readSwap(int spn, byte[] buf, int offset) {
+			Integer key = Integer.valueOf(spn);
+
+			lock.acquire();
+			Request put = unacknowledged.get(key);
+			boolean isRemote = remote.contains(key);
+			if (put != null)
+				System.arraycopy(put.contents, MemoryServer.headerLength,
+						buf, offset, Processor.pageSize);
+			lock.release();
+
+			if (put != null)
+				return;
+
+			if (!isRemote) {
+				super.readSwap(spn, buf, offset);
+				return;
+			}
+
+			lock.acquire();
+			Request get = newRequest(MemoryServer.opGet, spn,
+					new byte[MemoryServer.headerLength]);
+			lock.release();
+
+			Selector selector = new Selector();
+			selector.add(get.done);
+
+			postOffice.send(get.message());
+
+			long t = timeout;
+			while (selector.select(t) == null) {
+				// a busy server is still working through earlier requests
+				if (Machine.timer().getTime() - lastHeard >= t) {
+					postOffice.send(get.message());
+					t = Math.min(t * 2, maxTimeout);
+				}
+			}
+
+			MailMessage reply = get.reply;
+			Lib.assertTrue(reply.contentsLength == MemoryServer.headerLength
+					+ Processor.pageSize, "Memory server lost a page.");
+			System.arraycopy(reply.buffer, reply.contentsOffset
+					+ MemoryServer.headerLength, buf, offset,
+					Processor.pageSize);
+		}
+
+		/**
+		 * Start the thread that handles replies, the first time one is
+		 * needed. The post office does not exist yet when the swapper is
+		 * created.
+		 */
+		private void start() {
+			if (replyThread != null)
+				return;
+
+			replyThread = new KThread(new Runnable() {
+				public void run() {
+					handleReplies();
+				}
+			}).setName("remote swap replies");
+			replyThread.fork();
+		}
+
+		/**
+		 * Register a new request for swap page <i>spn</i>, with its header
+		 * written into <i>contents</i>. The lock must be held.
+		 */
+		private Request newRequest(byte op, int spn, byte[] contents) {
+			Request request = new Request(spn, contents);
+
+			contents[0] = op;
+			Lib.bytesFromInt(contents, 1, nextRequestID);
+			Lib.bytesFromInt(contents, 5, spn);
+
+			requests.put(Integer.valueOf(nextRequestID++), request);
+			return request;
+		}
+
+		private void handleReplies() {
+			Selector selector = new Selector();
+			selector.add(postOffice.mailbox(MemoryServer.clientPort));
+			selector.add(wakeup);
+
+			while (true) {
+				selector.select();
+
+				MailMessage reply;
+				while ((reply = postOffice.tryReceive(MemoryServer.clientPort)) != null)
+					handleReply(reply);
+
+				while (wakeup.tryP())
+					expirePuts();
+			}
+		}
+
+		private void handleReply(MailMessage reply) {
+			if (reply.contentsLength < MemoryServer.headerLength
+					|| reply.packet.srcLink != server)
+				return;
+
+			int op = reply.buffer[reply.contentsOffset];
+			Integer id = Integer.valueOf(Lib.bytesToInt(reply.buffer,
+					reply.contentsOffset + 1));
+
+			lastHeard = Machine.timer().getTime();
+
+			lock.acquire();
+
+			Request request = requests.remove(id);
+
+			if (request != null && op == MemoryServer.opPutAck) {
+				request.timer.cancel();
+
+				Integer key = Integer.valueOf(request.spn);
+				if (unacknowledged.get(key) == request) {
+					unacknowledged.remove(key);
+					remote.add(key);
+				}
+
+				putSlots.V();
+				if (--pendingPuts == 0)
+					cancelRecheck();
+			}
+			else if (request != null && op == MemoryServer.opGetReply) {
+				request.reply = reply;
+				request.done.V();
+			}
+
+			lock.release();
+		}
+
+		/**
+		 * If the server has been silent for the timeout, give up on every put
+		 * that has timed out, writing its page to the local swap file unless a
+		 * later put has replaced it, and stop using the server. If it has not,
+		 * check again once it has been silent that long, as long as any put is
+		 * still waiting for its acknowledgement.
+		 */
+		private void expirePuts() {
+			long now = Machine.timer().getTime();
+
+			lock.acquire();
+
+			if (now - lastHeard < timeout) {
+				cancelRecheck();
+				if (pendingPuts > 0) {
+					recheckTimer = ThreadedKernel.alarm.schedule(lastHeard
+							+ timeout - now, new Runnable() {
+						public void run() {
+							wakeup.V();
+						}
+					});
+				}
+
+				lock.release();
+				return;
+			}
+
+			Iterator<Request> i = requests.values().iterator();
+			while (i.hasNext()) {
+				Request put = i.next();
+				if (put.contents[0] != MemoryServer.opPut
+						|| now - put.startTime < timeout)
+					continue;
+
+				if (!serverDown)
+					System.out.println("Memory server " + server
+							+ " not responding, swapping locally");
+				serverDown = true;
+
+				Integer key = Integer.valueOf(put.spn);
+				if (unacknowledged.get(key) == put) {
+					swapLock.acquire();
+					writeLocal(put.spn, put.contents, MemoryServer.headerLength);
+					swapLock.release();
+
+					unacknowledged.remove(key);
+				}
+
+				i.remove();
+				putSlots.V();
+				pendingPuts--;
+			}
+
+			if (pendingPuts == 0)
+				cancelRecheck();
+
+			lock.release();
+		}
+
+		/**
+		 * Cancel the pending check for timed-out puts, if any. The lock must
+		 * be held.
+		 */
+		private void cancelRecheck() {
+			if (recheckTimer != null) {
+				recheckTimer.cancel();
+				recheckTimer = null;
+			}
+		}
+
+		/**
+		 * A request sent to the memory server and not yet answered.
+		 */
+		private class Request {
+			Request(int spn, byte[] contents) {
+				this.spn = spn;
+				this.contents = contents;
+				this.startTime = Machine.timer().getTime();
+			}
+
+			MailMessage message() {
+				try {
+					return new MailMessage(server, MemoryServer.port,
+							Machine.networkLink().getLinkAddress(),
+							MemoryServer.clientPort, contents);
+				}
+				catch (MalformedPacketException e) {
+					Lib.assertNotReached();
+					return null;
+				}
+			}
+
+			int spn;
+
+			byte[] contents;
+
+			long startTime;
+
+			Alarm.Timeout timer;
+
+			Semaphore done = new Semaphore(0);
+
+			MailMessage reply;
+		}
+
+		private int server;
+
+		private boolean serverDown = false;
+
+		/** When the last reply arrived from the server. */
+		private long lastHeard = 0;
+
+		private KThread replyThread = null;
+
+		private Lock lock = new Lock("remote swap");
+
+		private Semaphore wakeup = new Semaphore(0);
+
+		/**
+		 * The check for timed-out puts while the server is still answering,
+		 * or <tt>null</tt> if none is pending.
+		 */
+		private Alarm.Timeout recheckTimer = null;
+
+		/** Puts sent to the server and not yet acknowledged or expired. */
+		private int pendingPuts = 0;
+
+		private Semaphore putSlots = new Semaphore(Config.getInteger(
+				"RemoteSwapper.outstanding", 4));
+
+		private int nextRequestID = 0;
+
+		private HashMap<Integer, Request> requests = new HashMap<Integer, Request>();
+
+		/** Pages sent to the server but not yet acknowledged. */
+		private HashMap<Integer, Request> unacknowledged = new HashMap<Integer, Request>();
+
+		/** Swap pages held by the server. */
+		private HashSet<Integer> remote = new HashSet<Integer>();
+
+		private final long timeout = Config.getInteger(
+				"RemoteSwapper.timeout", 20000);
+
+		private final long maxTimeout = 16 * timeout;
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
@@ -116,7 +525,23 @@ public class NetKernel extends VMKernel {
 		super.terminate();
 	}
 
-	private PostOffice postOffice;
+	private static final boolean memoryServer = Config.getBoolean(
+			"NetKernel.memoryServer", false);
+
+	private static final int swapServer = Config.getInteger(
+			"NetKernel.swapServer", -1);
+
+	private static final boolean computeServer = Config.getBoolean(
+			"NetKernel.computeServer", false);
+
+	private static final boolean selfTest = Config.getBoolean(
+			"NetKernel.selfTest", false);
+
+	/** The post office through which this kernel's processes communicate. */
+	public static PostOffice postOffice;
+
+	/** Moves this kernel's processes to other machines, and takes theirs. */
+	public static Migration migration;
 
 	// dummy variables to make javac smarter
 	private static NetProcess dummy1 = null;
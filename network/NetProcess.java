@@ -5,8 +5,27 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
 /**
- * A <tt>VMProcess</tt> that supports networking syscalls.
+ * A <tt>VMProcess</tt> that supports networking syscalls, and can move to
+ * another machine while it runs.
+ *
+ * <p>
+ * If <tt>NetProcess.migrateTo</tt> names a machine, a process started here
+ * moves there at its first TLB miss after it has run for
+ * <tt>NetProcess.migrateAfter</tt> ticks, so that long-running processes
+ * end up on that machine. A process moves with its registers, its page
+ * table, and its open files and console; a process with sockets open or
+ * children is not moved. The new machine loads the executable again for
+ * code and clean pages, is sent the dirty pages in memory, and pulls swapped
+ * pages from this machine when they are first touched. See
+ * <tt>Migration</tt>.
  */
 public class NetProcess extends VMProcess {
 	/**
@@ -14,9 +33,432 @@ public class NetProcess extends VMProcess {
 	 */
 	public NetProcess() {
 		super();
+
+		startTime = Machine.timer().getTime();
 	}
 
-	private static final int syscallConnect = 11, syscallAccept = 12;
+	/**
+	 * Handle a user exception, first moving this process to
+	 * <tt>NetProcess.migrateTo</tt> if it is due to move.
+	 * 
+	 * @param cause the user exception that occurred.
+	 */
+	public void handleException(int cause) {
+		// a TLB miss is restarted, so the registers are the same on any machine
+		if (cause == Processor.exceptionTLBMiss && migrateTo >= 0
+				&& home < 0 && !stayHere
+				&& Machine.timer().getTime() - startTime >= migrateAfter) {
+			stayHere = true;
+			migrate(migrateTo);
+		}
+
+		super.handleException(cause);
+	}
+
+	/**
+	 * Move this process to another machine. Returns only if the process
+	 * cannot move, or the other machine refuses it; otherwise this thread
+	 * finishes, leaving the pages this process had swapped out for the other
+	 * machine to pull.
+	 */
+	private void migrate(int host) {
+		if (hasChildren())
+			return;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream state = new DataOutputStream(bytes);
+		HashMap<Integer, byte[]> pages = new HashMap<Integer, byte[]>();
+
+		saveState();
+
+		pteLock.acquire();
+
+		try {
+			state.writeUTF(executableName);
+			state.writeInt(numPages);
+
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				state.writeInt(Machine.processor().readRegister(i));
+
+			for (int i = 0; i < maxFiles; i++) {
+				OpenFile file = fileTable[i];
+				if (file == null) {
+					state.writeByte(fileNone);
+				}
+				else if (file.getFileSystem() == ThreadedKernel.fileSystem) {
+					state.writeByte(fileStub);
+					state.writeUTF(file.getName());
+					state.writeInt(file.tell());
+				}
+				else if (i < 2 && file.getFileSystem() == null
+						&& !(file instanceof Socket)) {
+					state.writeByte(fileConsole);
+				}
+				else {
+					pteLock.release();
+					return;
+				}
+			}
+
+			byte[] memory = Machine.processor().getMemory();
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				TranslationEntry entry = pageTable[vpn];
+
+				// a clean page is unchanged since it was loaded, from the
+				// executable or from swap
+				if (entry.valid && entry.dirty) {
+					byte[] page = new byte[pageSize];
+					System.arraycopy(memory, entry.ppn * pageSize, page, 0,
+							pageSize);
+					pages.put(Integer.valueOf(vpn), page);
+					state.writeByte(pageSent);
+				}
+				else if (spns[vpn] >= 0) {
+					state.writeByte(pageLeftBehind);
+				}
+				else {
+					state.writeByte(pageReloaded);
+				}
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		pteLock.release();
+
+		Migration migration = NetKernel.migration;
+
+		if (bytes.size() > Migration.maxStateLength
+				|| !migration.sendState(host, processID, pages.size(),
+						bytes.toByteArray()))
+			return;
+
+		for (Integer vpn : pages.keySet())
+			migration.sendPage(host, processID, vpn.intValue(), pages.get(vpn));
+
+		// the other machine is running this process now; give up its frames
+		VMKernel.IPT ipt = VMKernel.swapper.getIPT();
+
+		VMKernel.memoryLock.acquire();
+		pteLock.acquire();
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid) {
+				entry.valid = false;
+				if (ipt.getProcess(entry.ppn) == this)
+					ipt.update(entry.ppn, null, new TranslationEntry(0, 0,
+							false, false, false, false));
+			}
+		}
+
+		pteLock.release();
+		VMKernel.memoryLock.release();
+
+		for (int i = 0; i < maxFiles; i++) {
+			if (fileTable[i] != null)
+				fileTable[i].close();
+			fileTable[i] = null;
+		}
+
+		coff.close();
+
+		migration.emigrated(this);
+
+		Lib.debug(dbgNet, "process " + processID + " moved to " + host);
+
+		KThread.finish();
+	}
+
+	/**
+	 * Create a process to continue one moving here from another machine.
+	 * Called by <tt>Migration</tt>.
+	 * 
+	 * @param home the link address of the machine the process is leaving.
+	 * @param homeID the process's ID on that machine.
+	 * @param buf the array holding the process's state, packed by
+	 * <tt>migrate()</tt>.
+	 * @param offset where the state starts in <i>buf</i>.
+	 * @param length the length of the state.
+	 * @return the new process, not yet started, or <tt>null</tt> if it
+	 * cannot be loaded here.
+	 */
+	static NetProcess immigrate(int home, int homeID, byte[] buf, int offset,
+			int length) {
+		UserProcess created = newUserProcess();
+		if (!(created instanceof NetProcess))
+			return null;
+
+		NetProcess process = (NetProcess) created;
+		DataInputStream state = new DataInputStream(new ByteArrayInputStream(
+				buf, offset, length));
+
+		try {
+			if (!process.loadExecutable(state.readUTF()))
+				return null;
+
+			if (state.readInt() != process.numPages || !process.loadSections()) {
+				process.coff.close();
+				return null;
+			}
+
+			process.registers = new int[Processor.numUserRegisters];
+			for (int i = 0; i < process.registers.length; i++)
+				process.registers[i] = state.readInt();
+
+			for (int i = 0; i < maxFiles; i++) {
+				OpenFile file = process.fileTable[i];
+				byte kind = state.readByte();
+
+				if (kind == fileConsole)
+					continue;
+
+				if (file != null)
+					file.close();
+				file = null;
+
+				if (kind == fileStub) {
+					file = ThreadedKernel.fileSystem.open(state.readUTF(), false);
+					int pos = state.readInt();
+					if (file != null)
+						file.seek(pos);
+				}
+
+				process.fileTable[i] = file;
+			}
+
+			process.leftBehind = new boolean[process.numPages];
+			for (int vpn = 0; vpn < process.numPages; vpn++)
+				process.leftBehind[vpn] = state.readByte() == pageLeftBehind;
+		}
+		catch (IOException e) {
+			process.coff.close();
+			return null;
+		}
+
+		process.home = home;
+		process.homeID = homeID;
+		process.sent = new HashMap<Integer, byte[]>();
+
+		return process;
+	}
+
+	/**
+	 * Take a page sent with this process, before it has started here.
+	 * Called by <tt>Migration</tt>.
+	 */
+	void pageArrived(int vpn, byte[] buf, int offset) {
+		if (vpn < 0 || vpn >= numPages)
+			return;
+
+		byte[] page = new byte[pageSize];
+		System.arraycopy(buf, offset, page, 0, pageSize);
+		sent.put(Integer.valueOf(vpn), page);
+	}
+
+	/**
+	 * Return the number of pages sent with this process that have arrived.
+	 */
+	int pagesArrived() {
+		return sent.size();
+	}
+
+	/**
+	 * Start running this process here, where it left off.
+	 */
+	void resume() {
+		UserKernel.processLock.acquire();
+		UserKernel.numRunningProcesses++;
+		UserKernel.processLock.release();
+
+		Lib.debug(dbgNet, "process " + homeID + " from " + home
+				+ " resumed as " + processID);
+
+		new UThread(this, registers).setName(executableName).fork();
+	}
+
+	/**
+	 * Return a page this process left behind when it moved, for the machine
+	 * it moved to. Called by <tt>Migration</tt>.
+	 * 
+	 * @return the page, or <tt>null</tt> if this process did not leave it.
+	 */
+	byte[] pushPage(int vpn) {
+		if (vpn < 0 || vpn >= numPages || spns[vpn] < 0)
+			return null;
+
+		byte[] page = new byte[pageSize];
+		VMKernel.swapper.readSwap(spns[vpn], page, 0);
+		return page;
+	}
+
+	/**
+	 * Finish a process that moved away, once it has exited on the other
+	 * machine: free its swap pages, and report its exit here.
+	 * 
+	 * @param status the exit status, or <tt>null</tt> if the process
+	 * terminated abnormally.
+	 */
+	void finishEmigration(Integer status) {
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (spns[vpn] >= 0)
+				VMKernel.swapper.clearSwap(spns[vpn]);
+		}
+
+		UserKernel.processLock.acquire();
+
+		reportExit(status);
+
+		if (--UserKernel.numRunningProcesses == 0)
+			Kernel.kernel.terminate();
+
+		UserKernel.processLock.release();
+	}
+
+	/**
+	 * Fill a page from the pages this process brought with it or left behind
+	 * when it moved here, if it is one; otherwise, as usual.
+	 */
+	protected void allocatePage(int vpn, int ppn) {
+		byte[] page = null;
+
+		if (home >= 0) {
+			page = sent.remove(Integer.valueOf(vpn));
+
+			if (page == null && leftBehind[vpn]) {
+				page = NetKernel.migration.pullPage(home, homeID, vpn);
+				Lib.assertTrue(page != null, "Home machine lost a page.");
+			}
+		}
+
+		if (page == null) {
+			super.allocatePage(vpn, ppn);
+			return;
+		}
+
+		leftBehind[vpn] = false;
+
+		System.arraycopy(page, 0, Machine.processor().getMemory(), ppn
+				* pageSize, pageSize);
+
+		// there is no other copy to reload it from, so it must be swapped out
+		pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false,
+				true);
+	}
+
+	/**
+	 * Report this process's exit to the machine it moved from, if it moved
+	 * here, then exit as usual. The report waits for an answer, so it is sent
+	 * before <tt>processLock</tt> is taken.
+	 */
+	protected int handleExit(int status) {
+		if (home >= 0)
+			NetKernel.migration.sendExit(home, homeID,
+					abnormalTermination ? null : Integer.valueOf(status));
+
+		return super.handleExit(status);
+	}
+
+	/**
+	 * Give this process's exit status to its parent, unless it moved here:
+	 * its parent is on the machine it came from, which
+	 * <tt>handleExit()</tt> has already told.
+	 */
+	protected void reportExit(Integer status) {
+		if (home < 0)
+			super.reportExit(status);
+	}
+
+	private int handleConnect(int host, int port) {
+		int fileDescriptor = freeFileDescriptor();
+		if (fileDescriptor == -1)
+			return -1;
+
+		Socket socket = Socket.connect(NetKernel.postOffice, host, port);
+		if (socket == null)
+			return -1;
+
+		fileTable[fileDescriptor] = socket;
+		return fileDescriptor;
+	}
+
+	private int handleAccept(int port) {
+		int fileDescriptor = freeFileDescriptor();
+		if (fileDescriptor == -1)
+			return -1;
+
+		Socket socket = Socket.accept(NetKernel.postOffice, port);
+		if (socket == null)
+			return -1;
+
+		fileTable[fileDescriptor] = socket;
+		return fileDescriptor;
+	}
+
+	private int freeFileDescriptor() {
+		for (int i = 0; i < maxFiles; i++) {
+			if (fileTable[i] == null)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Read from a socket straight into this process's memory, without staging
+	 * the bytes in a kernel buffer.
+	 */
+	private int handleSocketRead(Socket socket, final int vaddrBuffer,
+			int length) {
+		if (length < 0)
+			return -1;
+
+		return socket.read(new Connection.Sink() {
+			public int put(byte[] data, int offset, int n) {
+				int actual = writeVirtualMemory(vaddrBuffer + pos, data, offset,
+						n);
+				pos += actual;
+				return actual;
+			}
+
+			private int pos = 0;
+		}, length);
+	}
+
+	/**
+	 * Write to a socket straight from this process's memory, without staging
+	 * the bytes in a kernel buffer.
+	 */
+	private int handleSocketWrite(Socket socket, final int vaddrBuffer,
+			int length) {
+		if (length < 0)
+			return -1;
+
+		int total = socket.write(new Connection.Source() {
+			public int get(byte[] data, int offset, int n) {
+				int actual = readVirtualMemory(vaddrBuffer + pos, data, offset,
+						n);
+				pos += actual;
+				return actual;
+			}
+
+			private int pos = 0;
+		}, length);
+
+		return (total == 0 && length > 0) ? -1 : total;
+	}
+
+	private Socket socket(int fileDescriptor) {
+		if (fileDescriptor < 0 || fileDescriptor >= maxFiles
+				|| !(fileTable[fileDescriptor] instanceof Socket))
+			return null;
+
+		return (Socket) fileTable[fileDescriptor];
+	}
+
+	private static final int syscallHalt = 0, syscallRead = 6,
+			syscallWrite = 7, syscallConnect = 11, syscallAccept = 12;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -28,6 +470,18 @@ public class NetProcess extends VMProcess {
 	 * <td>syscall prototype</td>
 	 * </tr>
 	 * <tr>
+	 * <td>0</td>
+	 * <td><tt>void halt();</tt>, which fails in a process that moved here</td>
+	 * </tr>
+	 * <tr>
+	 * <td>6</td>
+	 * <td><tt>int  read(int fd, char *buffer, int size);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>7</td>
+	 * <td><tt>int  write(int fd, char *buffer, int size);</tt></td>
+	 * </tr>
+	 * <tr>
 	 * <td>11</td>
 	 * <td><tt>int  connect(int host, int port);</tt></td>
 	 * </tr>
@@ -46,8 +500,63 @@ public class NetProcess extends VMProcess {
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 		switch (syscall) {
+		case syscallHalt:
+			if (home >= 0)
+				return -1;
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		case syscallConnect:
+			return handleConnect(a0, a1);
+		case syscallAccept:
+			return handleAccept(a0);
+		case syscallRead:
+			if (socket(a0) != null)
+				return handleSocketRead(socket(a0), a1, a2);
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		case syscallWrite:
+			if (socket(a0) != null)
+				return handleSocketWrite(socket(a0), a1, a2);
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
 		default:
 			return super.handleSyscall(syscall, a0, a1, a2, a3);
 		}
 	}
+
+	/** When this process was created on this machine. */
+	private long startTime;
+
+	/** Whether this process should no longer try to move. */
+	private boolean stayHere = false;
+
+	/**
+	 * The link address of the machine this process moved here from, or -1 if
+	 * it started here.
+	 */
+	private int home = -1;
+
+	/** This process's ID on <tt>home</tt>. */
+	private int homeID;
+
+	/** The user registers to resume with, once this process has moved here. */
+	private int[] registers;
+
+	/** Pages sent with this process and not yet faulted in, by vpn. */
+	private HashMap<Integer, byte[]> sent;
+
+	/** Which pages are still on <tt>home</tt>. */
+	private boolean[] leftBehind;
+
+	private static final byte fileNone = 0, fileConsole = 1, fileStub = 2;
+
+	private static final byte pageReloaded = 0, pageSent = 1,
+			pageLeftBehind = 2;
+
+	private static final int migrateTo = Config.getInteger(
+			"NetProcess.migrateTo", -1);
+
+	private static final long migrateAfter = Config.getInteger(
+			"NetProcess.migrateAfter", 0);
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgNet = 'n';
 }
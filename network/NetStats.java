@@ -0,0 +1,340 @@
+package nachos.network;
+
+import nachos.machine.*;
+
+/**
+ * Traffic statistics kept by a <tt>PostOffice</tt>, printed when the machine
+ * halts along with the link's own. They count the messages, bytes, and
+ * packets exchanged with each machine and sent or delivered through each
+ * port, and the messages the post office itself loses: to full mailboxes,
+ * and to fragments that never complete.
+ *
+ * <p>
+ * Two histograms show where messages wait. The send latency is measured
+ * from the call to <tt>send()</tt> until the packet carrying the message has
+ * left the link, so it covers waiting for room in the transmit queue, in a
+ * batch, and behind other packets. The mailbox delay is measured from a
+ * message's delivery to its port until a thread takes it. Machines do not
+ * share a clock, so the time a packet spends on the wire between them is not
+ * measured.
+ *
+ * <p>
+ * When throughput collapses, drops by the link point to loss, long mailbox
+ * delays or full mailboxes to receivers that do not keep up, and long send
+ * latencies with a busy link to the link itself.
+ */
+public class NetStats implements Stats.Report {
+	/**
+	 * Allocate a new, empty set of statistics.
+	 */
+	NetStats() {
+		for (int i = 0; i < mailboxDelay.length; i++)
+			mailboxDelay[i] = new Histogram();
+	}
+
+	/**
+	 * Record a message accepted for sending.
+	 */
+	void messageSent(MailMessage mail) {
+		int link = mail.packet.dstLink;
+
+		linkMessagesSent[link]++;
+		linkBytesSent[link] += mail.contentsLength;
+		portMessagesSent[mail.srcPort]++;
+		portBytesSent[mail.srcPort] += mail.contentsLength;
+	}
+
+	/**
+	 * Record a packet put in the link's transmit queue.
+	 */
+	void packetQueued(Packet packet) {
+		linkPacketsSent[packet.dstLink]++;
+	}
+
+	/**
+	 * Record a packet leaving the link, for a send that began at
+	 * <i>since</i>.
+	 */
+	void packetLeft(long since) {
+		sendLatency.add(Machine.timer().getTime() - since);
+	}
+
+	/**
+	 * Record a packet received from the link.
+	 */
+	void packetReceived(Packet packet) {
+		linkPacketsReceived[packet.srcLink]++;
+	}
+
+	/**
+	 * Record a message put in its mailbox, which now holds <i>depth</i>
+	 * messages.
+	 */
+	void messageDelivered(MailMessage mail, int depth) {
+		int link = mail.packet.srcLink, port = mail.dstPort;
+
+		linkMessagesReceived[link]++;
+		linkBytesReceived[link] += mail.contentsLength;
+		portMessagesDelivered[port]++;
+		portBytesDelivered[port] += mail.contentsLength;
+		peakDepth[port] = Math.max(peakDepth[port], depth);
+
+		mail.deliveredTime = Machine.timer().getTime();
+	}
+
+	/**
+	 * Record a message dropped because its mailbox was full.
+	 */
+	void mailboxFull(MailMessage mail) {
+		mailboxDrops[mail.dstPort]++;
+	}
+
+	/**
+	 * Record a message taken from its mailbox by a thread.
+	 */
+	void messageTaken(MailMessage mail) {
+		mailboxDelay[mail.dstPort].add(Machine.timer().getTime()
+				- mail.deliveredTime);
+	}
+
+	/**
+	 * Record a sender having to wait for room in the transmit queue.
+	 */
+	void transmitWait() {
+		transmitWaits++;
+	}
+
+	/**
+	 * Record a message lost while being reassembled.
+	 */
+	void reassemblyDrop() {
+		reassemblyDrops++;
+	}
+
+	/**
+	 * Record a batch of coalesced messages sent.
+	 */
+	void batchSent() {
+		batchesSent++;
+	}
+
+	/**
+	 * Return the number of batches of coalesced messages sent so far.
+	 *
+	 * @return the number of batches sent.
+	 */
+	public int batchesSent() {
+		return batchesSent;
+	}
+
+	/**
+	 * Return the histogram of send latencies.
+	 *
+	 * @return the send latency histogram.
+	 */
+	public Histogram sendLatency() {
+		return sendLatency;
+	}
+
+	/**
+	 * Return the histogram of delays in the specified port's mailbox.
+	 *
+	 * @param port the port.
+	 * @return the mailbox delay histogram.
+	 */
+	public Histogram mailboxDelay(int port) {
+		return mailboxDelay[port];
+	}
+
+	public void print() {
+		System.out.println("PostOffice: batches " + batchesSent
+				+ ", transmit waits " + transmitWaits + ", reassembly drops "
+				+ reassemblyDrops);
+		System.out.println("  send latency: " + sendLatency);
+
+		for (int link = 0; link < Packet.linkAddressLimit; link++) {
+			if (!linkUsed(link))
+				continue;
+
+			System.out.println("  link " + link + ": sent "
+					+ linkMessagesSent[link] + " (" + linkBytesSent[link]
+					+ " bytes, " + linkPacketsSent[link] + " packets), received "
+					+ linkMessagesReceived[link] + " ("
+					+ linkBytesReceived[link] + " bytes, "
+					+ linkPacketsReceived[link] + " packets)");
+		}
+
+		for (int port = 0; port < MailMessage.portLimit; port++) {
+			if (!portUsed(port))
+				continue;
+
+			System.out.println("  port " + port + ": sent "
+					+ portMessagesSent[port] + " (" + portBytesSent[port]
+					+ " bytes), delivered " + portMessagesDelivered[port]
+					+ " (" + portBytesDelivered[port] + " bytes), dropped "
+					+ mailboxDrops[port] + ", peak depth " + peakDepth[port]);
+			System.out.println("    mailbox delay: " + mailboxDelay[port]);
+		}
+	}
+
+	public void dump(StringBuffer dump) {
+		dump.append("net.batchesSent " + batchesSent + "\n");
+		dump.append("net.transmitWaits " + transmitWaits + "\n");
+		dump.append("net.reassemblyDrops " + reassemblyDrops + "\n");
+		sendLatency.dump(dump, "net.sendLatency");
+
+		for (int link = 0; link < Packet.linkAddressLimit; link++) {
+			if (!linkUsed(link))
+				continue;
+
+			String prefix = "net.link." + link + ".";
+			dump.append(prefix + "messagesSent " + linkMessagesSent[link]
+					+ "\n");
+			dump.append(prefix + "bytesSent " + linkBytesSent[link] + "\n");
+			dump.append(prefix + "packetsSent " + linkPacketsSent[link] + "\n");
+			dump.append(prefix + "messagesReceived "
+					+ linkMessagesReceived[link] + "\n");
+			dump.append(prefix + "bytesReceived " + linkBytesReceived[link]
+					+ "\n");
+			dump.append(prefix + "packetsReceived "
+					+ linkPacketsReceived[link] + "\n");
+		}
+
+		for (int port = 0; port < MailMessage.portLimit; port++) {
+			if (!portUsed(port))
+				continue;
+
+			String prefix = "net.port." + port + ".";
+			dump.append(prefix + "messagesSent " + portMessagesSent[port]
+					+ "\n");
+			dump.append(prefix + "bytesSent " + portBytesSent[port] + "\n");
+			dump.append(prefix + "messagesDelivered "
+					+ portMessagesDelivered[port] + "\n");
+			dump.append(prefix + "bytesDelivered " + portBytesDelivered[port]
+					+ "\n");
+			dump.append(prefix + "mailboxDrops " + mailboxDrops[port] + "\n");
+			dump.append(prefix + "peakDepth " + peakDepth[port] + "\n");
+			mailboxDelay[port].dump(dump, prefix + "mailboxDelay");
+		}
+	}
+
+	private boolean linkUsed(int link) {
+		return linkPacketsSent[link] != 0 || linkPacketsReceived[link] != 0;
+	}
+
+	private boolean portUsed(int port) {
+		return portMessagesSent[port] != 0 || portMessagesDelivered[port] != 0
+				|| mailboxDrops[port] != 0;
+	}
+
+	/**
+	 * A histogram of times, in ticks, with a bucket for 0 and one for each
+	 * power of two: bucket <i>i</i> holds times of at least
+	 * <tt>2<sup>i-1</sup></tt> and less than <tt>2<sup>i</sup></tt>.
+	 */
+	public static class Histogram {
+		/**
+		 * Add a time to this histogram.
+		 *
+		 * @param ticks the time.
+		 */
+		public void add(long ticks) {
+			int bucket = 0;
+			while (bucket < buckets.length - 1 && (1L << bucket) <= ticks)
+				bucket++;
+
+			buckets[bucket]++;
+			count++;
+			total += ticks;
+			max = Math.max(max, ticks);
+		}
+
+		/**
+		 * Return an upper bound on the specified fraction of the times added:
+		 * the end of the bucket holding that fraction of them.
+		 *
+		 * @param fraction the fraction, between 0 and 1.
+		 * @return the bound, or 0 if no times have been added.
+		 */
+		public long percentile(double fraction) {
+			long needed = (long) Math.ceil(fraction * count), seen = 0;
+
+			for (int bucket = 0; bucket < buckets.length; bucket++) {
+				seen += buckets[bucket];
+				if (seen >= needed && seen > 0)
+					return 1L << bucket;
+			}
+
+			return 0;
+		}
+
+		/**
+		 * Return the number of times added.
+		 *
+		 * @return the count.
+		 */
+		public long count() {
+			return count;
+		}
+
+		public String toString() {
+			if (count == 0)
+				return "none";
+
+			return count + " samples, mean " + (total / count) + ", p50 < "
+					+ percentile(0.5) + ", p90 < " + percentile(0.9)
+					+ ", p99 < " + percentile(0.99) + ", max " + max + " ticks";
+		}
+
+		/**
+		 * Append this histogram to a dump, each statistic named with
+		 * <i>prefix</i>. Each nonempty bucket is named by its upper bound.
+		 */
+		void dump(StringBuffer dump, String prefix) {
+			dump.append(prefix + ".count " + count + "\n");
+			dump.append(prefix + ".total " + total + "\n");
+			dump.append(prefix + ".max " + max + "\n");
+
+			for (int bucket = 0; bucket < buckets.length; bucket++) {
+				if (buckets[bucket] != 0)
+					dump.append(prefix + ".lt." + (1L << bucket) + " "
+							+ buckets[bucket] + "\n");
+			}
+		}
+
+		private long[] buckets = new long[40];
+
+		private long count = 0, total = 0, max = 0;
+	}
+
+	private int batchesSent = 0, transmitWaits = 0, reassemblyDrops = 0;
+
+	private Histogram sendLatency = new Histogram();
+
+	/** Messages, bytes, and packets sent to each machine. */
+	private int[] linkMessagesSent = new int[Packet.linkAddressLimit],
+			linkPacketsSent = new int[Packet.linkAddressLimit];
+
+	private long[] linkBytesSent = new long[Packet.linkAddressLimit];
+
+	/** Messages, bytes, and packets received from each machine. */
+	private int[] linkMessagesReceived = new int[Packet.linkAddressLimit],
+			linkPacketsReceived = new int[Packet.linkAddressLimit];
+
+	private long[] linkBytesReceived = new long[Packet.linkAddressLimit];
+
+	/** Messages and bytes sent from each port. */
+	private int[] portMessagesSent = new int[MailMessage.portLimit];
+
+	private long[] portBytesSent = new long[MailMessage.portLimit];
+
+	/** Messages and bytes delivered to each port. */
+	private int[] portMessagesDelivered = new int[MailMessage.portLimit];
+
+	private long[] portBytesDelivered = new long[MailMessage.portLimit];
+
+	private int[] mailboxDrops = new int[MailMessage.portLimit],
+			peakDepth = new int[MailMessage.portLimit];
+
+	private Histogram[] mailboxDelay = new Histogram[MailMessage.portLimit];
+}
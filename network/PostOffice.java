@@ -3,6 +3,11 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because of
@@ -10,25 +15,57 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  * 
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot be
- * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * Each queue is a <tt>BoundedSynchList</tt>, which needs no lock to add to,
+ * so messages are placed in their queues directly by the receive interrupt
+ * handler. A message for a queue that is already full is dropped, as if the
+ * network had lost it. The capacity of each queue is set by
+ * <tt>PostOffice.mailboxCapacity</tt>.
+ * 
+ * <p>
+ * Sending is not serialized: a thread waits only while the link's transmit
+ * queue is full, so several threads can have messages in flight at once.
+ * 
+ * <p>
+ * If <tt>PostOffice.coalesce</tt> is set, small messages are coalesced, in
+ * the manner of Nagle's algorithm. A small message sent while the link is
+ * idle goes out at once; one sent while the link is busy is held in a batch
+ * with the other small messages for the same machine, and the whole batch
+ * goes out as one packet when the link falls idle, when the batch is full, or
+ * <tt>PostOffice.coalesceDelay</tt> ticks after it was started, whichever
+ * comes first. A larger message flushes the batch for its machine ahead of
+ * itself, so messages between two machines stay in order. Batches are always
+ * unpacked on arrival, whether or not this post office coalesces.
+ * 
+ * <p>
+ * A message too large for one packet is sent in fragments, each carrying the
+ * message's ports, an 8-bit message ID, and its index and the number of
+ * fragments. The receiver reassembles each message in a buffer allocated on
+ * its first fragment, found by the source machine, port, and message ID, so
+ * the fragments of two messages sent at once from one port may interleave. A
+ * missing fragment loses the whole message, as does a buffer not completed within
+ * <tt>PostOffice.reassemblyTimeout</tt> ticks. Buffers are limited to
+ * <tt>PostOffice.reassemblyLimit</tt> bytes in all; a message that would
+ * exceed that is dropped.
+ * 
+ * <p>
+ * Traffic through the post office is counted in a <tt>NetStats</tt>, which
+ * is printed with the machine's statistics when it halts.
  */
 public class PostOffice {
 	/**
-	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-	 * Register the interrupt handlers with the network hardware and start the
-	 * "postal worker" thread.
+	 * Allocate a new post office, using an array of
+	 * <tt>BoundedSynchList</tt>s. Register the interrupt handlers with the
+	 * network hardware.
 	 */
 	public PostOffice() {
-		messageReceived = new Semaphore(0);
-		messageSent = new Semaphore(0);
-		sendLock = new Lock();
+		transmitSlots = new Semaphore(Machine.networkLink()
+				.getTransmitQueueDepth());
 
-		queues = new SynchList[MailMessage.portLimit];
+		int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
+
+		queues = new BoundedSynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new BoundedSynchList(capacity);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -42,13 +79,7 @@ public class PostOffice {
 		};
 		Machine.networkLink().setInterruptHandlers(receiveHandler, sendHandler);
 
-		KThread t = new KThread(new Runnable() {
-			public void run() {
-				postalDelivery();
-			}
-		});
-
-		t.fork();
+		Stats.addReport(statistics);
 	}
 
 	/**
@@ -64,6 +95,7 @@ public class PostOffice {
 		Lib.debug(dbgNet, "waiting for mail on port " + port);
 
 		MailMessage mail = (MailMessage) queues[port].removeFirst();
+		statistics.messageTaken(mail);
 
 		if (Lib.test(dbgNet))
 			System.out.println("got mail on port " + port + ": " + mail);
@@ -72,71 +104,761 @@ public class PostOffice {
 	}
 
 	/**
-	 * Wait for incoming messages, and then put them in the correct mailbox.
+	 * Retrieve a message on the specified port, if one is waiting.
+	 * 
+	 * @param port the port on which to look for a message.
+	 * 
+	 * @return the message received, or <tt>null</tt> if there was none.
+	 */
+	public MailMessage tryReceive(int port) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		MailMessage mail = (MailMessage) queues[port].tryRemoveFirst();
+		if (mail != null)
+			statistics.messageTaken(mail);
+
+		return mail;
+	}
+
+	/**
+	 * Return the mailbox for the specified port, so that a <tt>Selector</tt>
+	 * can wait on it along with other sources. The mailbox is ready when a
+	 * message is waiting on the port.
+	 * 
+	 * @param port the port whose mailbox to return.
+	 * 
+	 * @return the port's mailbox.
 	 */
-	private void postalDelivery() {
+	public Selectable mailbox(int port) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		return queues[port];
+	}
+
+	/**
+	 * Retrieve a message on any of the specified ports, waiting at most
+	 * <i>timeout</i> ticks for one to arrive. This lets one thread serve
+	 * several ports.
+	 * 
+	 * @param ports the ports on which to wait for a message.
+	 * @param timeout the maximum number of ticks to wait, 0 to poll, or a
+	 * negative number to wait forever.
+	 * 
+	 * @return the message received, or <tt>null</tt> if none arrived in time.
+	 * The message's <tt>dstPort</tt> says which port it arrived on.
+	 */
+	public MailMessage receive(int[] ports, long timeout) {
+		Selector selector = new Selector();
+		for (int i = 0; i < ports.length; i++) {
+			Lib.assertTrue(ports[i] >= 0 && ports[i] < queues.length);
+			selector.add(queues[ports[i]]);
+		}
+
+		long deadline = Machine.timer().getTime() + timeout;
+
+		Lib.debug(dbgNet, "waiting for mail on " + ports.length + " ports");
+
 		while (true) {
-			messageReceived.P();
+			BoundedSynchList queue = (BoundedSynchList) selector.select(timeout);
+			if (queue == null)
+				return null;
 
-			Packet p = Machine.networkLink().receive();
+			// another thread may have emptied the mailbox first
+			MailMessage mail = (MailMessage) queue.tryRemoveFirst();
+			if (mail != null) {
+				statistics.messageTaken(mail);
 
-			MailMessage mail;
+				if (Lib.test(dbgNet))
+					System.out.println("got mail on port " + mail.dstPort
+							+ ": " + mail);
+
+				return mail;
+			}
+
+			if (timeout > 0)
+				timeout = Math.max(deadline - Machine.timer().getTime(), 0);
+		}
+	}
+
+	/**
+	 * Called when a packet has arrived and can be dequeued from the network
+	 * link. Puts the message in the correct mailbox, waking a waiting thread.
+	 */
+	private void receiveInterrupt() {
+		Packet p = Machine.networkLink().receive();
+		if (p == null)
+			return;
+
+		statistics.packetReceived(p);
+
+		if (p.contentsLength > 0
+				&& p.packetBytes[p.contentsOffset] == batchMarker) {
+			unpack(p);
+			return;
+		}
+
+		if (p.contentsLength > 0
+				&& p.packetBytes[p.contentsOffset] == fragmentMarker) {
+			reassemble(p);
+			return;
+		}
+
+		try {
+			deliver(new MailMessage(p));
+		}
+		catch (MalformedPacketException e) {
+		}
+	}
+
+	/**
+	 * Deliver each of the messages in a batch. A malformed record ends the
+	 * batch.
+	 */
+	private void unpack(Packet p) {
+		byte[] bytes = p.packetBytes;
+		int pos = p.contentsOffset + 1;
+		int end = p.contentsOffset + p.contentsLength;
+
+		while (pos + recordHeaderLength <= end) {
+			int length = bytes[pos + 2];
+			if (length < 0 || pos + recordHeaderLength + length > end)
+				return;
 
 			try {
-				mail = new MailMessage(p);
+				deliver(new MailMessage(p.dstLink, bytes[pos], p.srcLink,
+						bytes[pos + 1], bytes, pos + recordHeaderLength, length));
 			}
 			catch (MalformedPacketException e) {
-				continue;
+				return;
 			}
 
-			if (Lib.test(dbgNet))
-				System.out.println("delivering mail to port " + mail.dstPort
-						+ ": " + mail);
+			pos += recordHeaderLength + length;
+		}
+	}
+
+	/**
+	 * Add a fragment to the message it belongs to, and deliver the message if
+	 * it is complete.
+	 */
+	private void reassemble(Packet p) {
+		byte[] bytes = p.packetBytes;
+		int pos = p.contentsOffset;
+		int length = p.contentsLength - fragmentHeaderLength;
+
+		if (length <= 0)
+			return;
 
-			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+		int dstPort = bytes[pos + 1], srcPort = bytes[pos + 2];
+		int id = bytes[pos + 3] & 0xFF;
+		int index = bytes[pos + 4] & 0xFF, count = bytes[pos + 5] & 0xFF;
+
+		if (dstPort < 0 || dstPort >= MailMessage.portLimit || srcPort < 0
+				|| srcPort >= MailMessage.portLimit || index >= count)
+			return;
+
+		Integer key = Integer.valueOf((p.srcLink * MailMessage.portLimit
+				+ srcPort) * 256 + id);
+		Reassembly r = reassemblies.get(key);
+
+		// a fragment out of sequence means the rest of the message was lost
+		if (r != null && (r.dstPort != dstPort || r.count != count
+				|| r.next != index)) {
+			discard(key, r);
+			r = null;
+		}
+
+		if (r == null) {
+			if (index != 0)
+				return;
+
+			int size = count * fragmentPayload;
+			if (reassemblyBytes + size > reassemblyLimit) {
+				Lib.debug(dbgNet, "reassembly buffers full, dropping fragment");
+				statistics.reassemblyDrop();
+				return;
+			}
+
+			r = new Reassembly(id, dstPort, count, size);
+			reassemblies.put(key, r);
+			reassemblyBytes += size;
+
+			if (reassemblyTimer == null)
+				armReassemblyTimer();
+		}
+
+		if (index < count - 1 && length != fragmentPayload) {
+			discard(key, r);
+			return;
+		}
+
+		System.arraycopy(bytes, pos + fragmentHeaderLength, r.data, r.length,
+				length);
+		r.length += length;
+		r.next++;
+		r.lastTime = Machine.timer().getTime();
+
+		if (r.next < count)
+			return;
+
+		reassemblies.remove(key);
+		reassemblyBytes -= r.data.length;
+
+		try {
+			deliver(new MailMessage(p.dstLink, dstPort, p.srcLink, srcPort,
+					r.data, 0, r.length));
+		}
+		catch (MalformedPacketException e) {
 		}
 	}
 
+	private void discard(Integer key, Reassembly r) {
+		reassemblies.remove(key);
+		reassemblyBytes -= r.data.length;
+		statistics.reassemblyDrop();
+
+		Lib.debug(dbgNet, "discarding incomplete message " + r.id);
+	}
+
 	/**
-	 * Called when a packet has arrived and can be dequeued from the network
-	 * link.
+	 * Free the reassembly buffers that have not grown for
+	 * <tt>reassemblyTimeout</tt> ticks, checking again later while any are
+	 * left. Runs in the timer interrupt.
 	 */
-	private void receiveInterrupt() {
-		messageReceived.V();
+	private void armReassemblyTimer() {
+		reassemblyTimer = ThreadedKernel.alarm.schedule(reassemblyTimeout,
+				new Runnable() {
+					public void run() {
+						reassemblyTimer = null;
+
+						long now = Machine.timer().getTime();
+						Iterator<Map.Entry<Integer, Reassembly>> i = reassemblies
+								.entrySet().iterator();
+						while (i.hasNext()) {
+							Reassembly r = i.next().getValue();
+							if (now - r.lastTime >= reassemblyTimeout) {
+								i.remove();
+								reassemblyBytes -= r.data.length;
+								statistics.reassemblyDrop();
+							}
+						}
+
+						if (!reassemblies.isEmpty())
+							armReassemblyTimer();
+					}
+				});
+	}
+
+	private void deliver(MailMessage mail) {
+		if (!queues[mail.dstPort].offer(mail)) {
+			Lib.debug(dbgNet, "mailbox " + mail.dstPort + " full, dropping: "
+					+ mail);
+			statistics.mailboxFull(mail);
+			return;
+		}
+
+		statistics.messageDelivered(mail, queues[mail.dstPort].size());
+
+		if (Lib.test(dbgNet))
+			System.out.println("delivered mail to port " + mail.dstPort + ": "
+					+ mail);
 	}
 
 	/**
-	 * Send a message to a mailbox on a remote machine.
+	 * Send a message to a mailbox on a remote machine. Waits until there is
+	 * room in the link's transmit queue, but not for the message to be sent.
 	 */
 	public void send(MailMessage mail) {
-		if (Lib.test(dbgNet))
+		Lib.assertTrue(post(mail, true));
+	}
+
+	/**
+	 * Send a message to a mailbox on a remote machine, if there is room in the
+	 * link's transmit queue.
+	 * 
+	 * @return <tt>true</tt> if the message was queued to be sent, or
+	 * <tt>false</tt> if the transmit queue was full.
+	 */
+	public boolean trySend(MailMessage mail) {
+		return post(mail, false);
+	}
+
+	/**
+	 * Queue a message to be sent, or add it to the batch for its machine.
+	 * 
+	 * @param block <tt>true</tt> to wait for room in the transmit queue.
+	 * @return <tt>true</tt> if the message was queued or batched.
+	 */
+	private boolean post(MailMessage mail, boolean block) {
+		long since = Machine.timer().getTime();
+
+		if (mail.contentsLength > MailMessage.maxContentsLength)
+			return postFragments(mail, block, since);
+
+		if (!coalesce) {
+			if (!transmit(mail.packet, block, since))
+				return false;
+
+			statistics.messageSent(mail);
+
+			if (Lib.test(dbgNet))
+				System.out.println("sending mail: " + mail);
+
+			return true;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int link = mail.packet.dstLink;
+		boolean small = (mail.contentsLength <= maxCoalesced);
+		boolean posted = true;
+
+		// flush whatever must go ahead of this message
+		if (batches[link] != null && (!small || !batches[link].fits(mail))
+				&& !flush(link, block)) {
+			posted = false;
+		}
+		else if (!small || (batches[link] == null && queued == 0)) {
+			posted = transmit(mail.packet, block, since);
+		}
+		else {
+			if (batches[link] == null) {
+				batches[link] = new Batch(link, since);
+				numBatches++;
+			}
+
+			batches[link].add(mail);
+
+			// a full batch that cannot go yet is flushed by sendInterrupt()
+			if (batches[link].full())
+				flush(link, false);
+			else if (flushTimer == null)
+				armFlushTimer();
+		}
+
+		if (posted)
+			statistics.messageSent(mail);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (posted && Lib.test(dbgNet))
 			System.out.println("sending mail: " + mail);
 
-		sendLock.acquire();
+		return posted;
+	}
+
+	/**
+	 * Queue every fragment of a message too large for one packet. Without
+	 * <i>block</i>, nothing is queued unless every fragment fits at once.
+	 */
+	private boolean postFragments(MailMessage mail, boolean block, long since) {
+		int link = mail.packet.dstLink;
+		int count = (mail.contentsLength + fragmentPayload - 1)
+				/ fragmentPayload;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int needed = count + (batches[link] != null ? 1 : 0);
+		boolean posted = block
+				|| Machine.networkLink().getTransmitQueueDepth() - queued >= needed;
+
+		if (posted) {
+			// the batch for this machine goes ahead of the message
+			if (batches[link] != null)
+				flush(link, true);
 
-		Machine.networkLink().send(mail.packet);
-		messageSent.P();
+			int id = nextFragmentID;
+			nextFragmentID = (nextFragmentID + 1) & 0xFF;
 
-		sendLock.release();
+			for (int i = 0; i < count; i++)
+				transmit(fragment(mail, id, i, count), true, since);
+
+			statistics.messageSent(mail);
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		if (posted && Lib.test(dbgNet))
+			System.out.println("sending mail in " + count + " fragments: "
+					+ mail);
+
+		return posted;
+	}
+
+	private Packet fragment(MailMessage mail, int id, int index, int count) {
+		int offset = index * fragmentPayload;
+		int length = Math.min(fragmentPayload, mail.contentsLength - offset);
+		byte[] contents = new byte[fragmentHeaderLength + length];
+
+		contents[0] = fragmentMarker;
+		contents[1] = (byte) mail.dstPort;
+		contents[2] = (byte) mail.srcPort;
+		contents[3] = (byte) id;
+		contents[4] = (byte) index;
+		contents[5] = (byte) count;
+		System.arraycopy(mail.buffer, mail.contentsOffset + offset, contents,
+				fragmentHeaderLength, length);
+
+		try {
+			return new Packet(mail.packet.dstLink, mail.packet.srcLink,
+					contents);
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	/**
+	 * Put a packet in the link's transmit queue.
+	 * 
+	 * @param block <tt>true</tt> to wait for room in the transmit queue.
+	 * @param since when the send that this packet carries began.
+	 * @return <tt>true</tt> if the packet was queued.
+	 */
+	private boolean transmit(Packet packet, boolean block, long since) {
+		if (!transmitSlots.tryP()) {
+			if (!block)
+				return false;
+
+			statistics.transmitWait();
+			transmitSlots.P();
+		}
+
+		queued++;
+		sendTimes.add(Long.valueOf(since));
+		statistics.packetQueued(packet);
+		Lib.assertTrue(Machine.networkLink().trySend(packet));
+		return true;
+	}
+
+	/**
+	 * Send the batch for the specified machine. Interrupts must be disabled.
+	 * 
+	 * @param block <tt>true</tt> to wait for room in the transmit queue.
+	 * @return <tt>true</tt> if the batch was queued; otherwise it is kept.
+	 */
+	private boolean flush(int link, boolean block) {
+		Batch batch = batches[link];
+		batches[link] = null;
+		numBatches--;
+
+		if (!transmit(batch.packet(), block, batch.startTime)) {
+			batches[link] = batch;
+			numBatches++;
+			return false;
+		}
+
+		statistics.batchSent();
+		return true;
+	}
+
+	/**
+	 * Send as many batches as the transmit queue has room for, without
+	 * waiting. Interrupts must be disabled.
+	 */
+	private void flushAll() {
+		for (int link = 0; link < batches.length && numBatches > 0; link++) {
+			if (batches[link] != null && !flush(link, false))
+				return;
+		}
+	}
+
+	private void armFlushTimer() {
+		flushTimer = ThreadedKernel.alarm.schedule(coalesceDelay,
+				new Runnable() {
+					public void run() {
+						flushTimer = null;
+						flushAll();
+						if (numBatches > 0)
+							armFlushTimer();
+					}
+				});
 	}
 
 	/**
-	 * Called when a packet has been sent and another can be queued to the
-	 * network link. Note that this is called even if the previous packet was
-	 * dropped.
+	 * Called when a packet has left the link's transmit queue, whether it was
+	 * sent or dropped, so that another can be queued. When the link falls
+	 * idle, the waiting batches are sent.
 	 */
 	private void sendInterrupt() {
-		messageSent.V();
+		queued--;
+		statistics.packetLeft(sendTimes.removeFirst().longValue());
+		transmitSlots.V();
+
+		if (queued == 0 && numBatches > 0)
+			flushAll();
 	}
 
-	private SynchList[] queues;
+	/**
+	 * Return the number of batches of coalesced messages sent so far.
+	 * 
+	 * @return the number of batches sent.
+	 */
+	public int batchesSent() {
+		return statistics.batchesSent();
+	}
+
+	/**
+	 * Return the traffic statistics kept by this post office.
+	 * 
+	 * @return the statistics.
+	 */
+	public NetStats statistics() {
+		return statistics;
+	}
+
+	/**
+	 * Send a burst of small messages to another port on this machine and
+	 * check that they all arrive, in order, reporting how long they took and
+	 * how many batches carried them. Then send and check a message too large
+	 * for one packet, and two such messages sent at once from the same port.
+	 * Assumes a reliable network, and that the mailbox can hold the whole
+	 * burst.
+	 */
+	public void selfTest() {
+		final int srcPort = 5, dstPort = 6, count = 48;
+		int link = Machine.networkLink().getLinkAddress();
+		int batchesBefore = batchesSent();
+		long startTime = Machine.timer().getTime();
+
+		for (int i = 0; i < count; i++) {
+			try {
+				send(new MailMessage(link, dstPort, link, srcPort,
+						Lib.bytesFromInt(i)));
+			}
+			catch (MalformedPacketException e) {
+				Lib.assertNotReached();
+			}
+		}
+
+		for (int i = 0; i < count; i++) {
+			MailMessage mail = receive(dstPort);
+			Lib.assertTrue(mail.srcPort == srcPort
+					&& Lib.bytesToInt(mail.buffer,
+							mail.contentsOffset) == i,
+					"PostOffice lost or reordered a message.");
+		}
+
+		System.out.println("PostOffice test: " + count + " messages in "
+				+ (Machine.timer().getTime() - startTime) + " ticks, "
+				+ (batchesSent() - batchesBefore) + " batches");
+
+		// a message several pages long, sent in fragments
+		byte[] large = new byte[MailMessage.maxMessageLength];
+		for (int i = 0; i < large.length; i++)
+			large[i] = (byte) (i * 7);
+
+		startTime = Machine.timer().getTime();
+
+		try {
+			send(new MailMessage(link, dstPort, link, srcPort, large));
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+		}
+
+		MailMessage mail = receive(dstPort);
+		Lib.assertTrue(mail.contentsLength == large.length,
+				"PostOffice reassembled a message of the wrong length.");
+		for (int i = 0; i < large.length; i++)
+			Lib.assertTrue(mail.buffer[mail.contentsOffset + i] == large[i],
+					"PostOffice reassembled a message wrongly.");
+
+		System.out.println("PostOffice test: " + large.length
+				+ " byte message in "
+				+ (Machine.timer().getTime() - startTime) + " ticks");
+
+		// two at once, whose fragments interleave in the transmit queue
+		final MailMessage first, second;
+		byte[] other = new byte[large.length];
+		for (int i = 0; i < other.length; i++)
+			other[i] = (byte) (i * 11);
+
+		try {
+			first = new MailMessage(link, dstPort, link, srcPort, large);
+			second = new MailMessage(link, dstPort, link, srcPort, other);
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+			return;
+		}
+
+		KThread sender = new KThread(new Runnable() {
+			public void run() {
+				send(second);
+			}
+		}).setName("post office test sender");
+		sender.fork();
+
+		send(first);
+		sender.join();
+
+		boolean[] seen = new boolean[2];
+		for (int k = 0; k < 2; k++) {
+			mail = receive(dstPort);
+			Lib.assertTrue(mail.contentsLength == large.length,
+					"PostOffice reassembled a message of the wrong length.");
+
+			int which = (mail.buffer[mail.contentsOffset + 1] == large[1]) ? 0
+					: 1;
+			byte[] expected = (which == 0) ? large : other;
+			for (int i = 0; i < expected.length; i++)
+				Lib.assertTrue(mail.buffer[mail.contentsOffset + i] == expected[i],
+						"PostOffice mixed up messages sent at once.");
+			seen[which] = true;
+		}
+
+		Lib.assertTrue(seen[0] && seen[1],
+				"PostOffice lost one of two messages sent at once.");
+
+		System.out.println("PostOffice test: 2 messages sent at once from one port");
+	}
+
+	/**
+	 * A message being reassembled from its fragments.
+	 */
+	private static class Reassembly {
+		Reassembly(int id, int dstPort, int count, int size) {
+			this.id = id;
+			this.dstPort = dstPort;
+			this.count = count;
+			this.data = new byte[size];
+		}
+
+		int id, dstPort, count;
+
+		/** The index of the next fragment expected. */
+		int next = 0;
+
+		byte[] data;
+
+		int length = 0;
+
+		long lastTime;
+	}
+
+	/**
+	 * Small messages bound for one machine, packed into the contents of a
+	 * single packet. The contents start with <tt>batchMarker</tt>, which is
+	 * not a valid port, followed by one record per message: its destination
+	 * port, source port, and length, each one byte, then its contents.
+	 */
+	private static class Batch {
+		Batch(int dstLink, long startTime) {
+			this.dstLink = dstLink;
+			this.startTime = startTime;
+			contents[0] = batchMarker;
+		}
+
+		boolean fits(MailMessage mail) {
+			return length + recordHeaderLength + mail.contentsLength <= contents.length;
+		}
+
+		boolean full() {
+			return length + recordHeaderLength >= contents.length;
+		}
+
+		void add(MailMessage mail) {
+			if (count++ == 0)
+				first = mail;
+
+			contents[length] = (byte) mail.dstPort;
+			contents[length + 1] = (byte) mail.srcPort;
+			contents[length + 2] = (byte) mail.contentsLength;
+			System.arraycopy(mail.buffer, mail.contentsOffset,
+					contents, length + recordHeaderLength, mail.contentsLength);
+			length += recordHeaderLength + mail.contentsLength;
+		}
+
+		/**
+		 * Return the packet carrying this batch, or the packet of its only
+		 * message.
+		 */
+		Packet packet() {
+			if (count == 1)
+				return first.packet;
+
+			byte[] packetContents = new byte[length];
+			System.arraycopy(contents, 0, packetContents, 0, length);
+
+			try {
+				return new Packet(dstLink, Machine.networkLink()
+						.getLinkAddress(), packetContents);
+			}
+			catch (MalformedPacketException e) {
+				Lib.assertNotReached();
+				return null;
+			}
+		}
+
+		int dstLink;
+
+		/** When the first message in this batch was sent. */
+		long startTime;
+
+		byte[] contents = new byte[Packet.maxContentsLength];
+
+		int length = 1, count = 0;
+
+		MailMessage first;
+	}
+
+	private BoundedSynchList[] queues;
+
+	private Semaphore transmitSlots; // free entries in the transmit queue
+
+	private int queued = 0; // packets in the transmit queue
+
+	/** When the send carried by each packet in the transmit queue began. */
+	private LinkedList<Long> sendTimes = new LinkedList<Long>();
+
+	private Batch[] batches = new Batch[Packet.linkAddressLimit];
+
+	private int numBatches = 0;
+
+	private Alarm.Timeout flushTimer = null;
+
+	private static final boolean coalesce = Config.getBoolean(
+			"PostOffice.coalesce", false);
+
+	private static final long coalesceDelay = Config.getInteger(
+			"PostOffice.coalesceDelay", 500);
+
+	private static final byte batchMarker = (byte) 0x80;
+
+	private static final int recordHeaderLength = 3;
+
+	private HashMap<Integer, Reassembly> reassemblies = new HashMap<Integer, Reassembly>();
+
+	private int reassemblyBytes = 0;
+
+	private Alarm.Timeout reassemblyTimer = null;
+
+	private int nextFragmentID = 0;
+
+	private static final long reassemblyTimeout = Config.getInteger(
+			"PostOffice.reassemblyTimeout", 20000);
+
+	private static final int reassemblyLimit = Config.getInteger(
+			"PostOffice.reassemblyLimit", 16384);
+
+	private static final byte fragmentMarker = (byte) 0x81;
+
+	/**
+	 * The number of bytes in a fragment header: the marker, destination port,
+	 * source port, message ID, fragment index, and fragment count, one byte
+	 * each.
+	 */
+	static final int fragmentHeaderLength = 6;
 
-	private Semaphore messageReceived; // V'd when a message can be dequeued
+	private static final int fragmentPayload = Packet.maxContentsLength
+			- fragmentHeaderLength;
 
-	private Semaphore messageSent; // V'd when a message can be queued
+	/** The largest message worth coalescing: two of them fit in a batch. */
+	private static final int maxCoalesced = (Packet.maxContentsLength - 1)
+			/ 2 - recordHeaderLength;
 
-	private Lock sendLock;
+	private NetStats statistics = new NetStats();
 
 	private static final char dbgNet = 'n';
 }
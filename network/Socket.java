@@ -0,0 +1,337 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * A stream connected to a port on another machine, usable as a file. Each
+ * socket is a <tt>Connection</tt> on a port of its own, chosen from the upper
+ * half of the port range; user programs should listen on the lower half.
+ *
+ * <p>
+ * Sockets are set up with a two-way handshake. <tt>connect()</tt> sends a
+ * request from its new port to the listening port, and repeats it, backing
+ * off, until the server accepts. <tt>accept()</tt> takes a request waiting on
+ * the listening port, opens a connection to the client on a new port, and
+ * answers from that port, which tells the client where to send. A repeated
+ * request from a client already accepted is answered again rather than
+ * accepted twice, in case the first answer was lost; since <tt>accept()</tt>
+ * never waits, such repeats are only seen when the server next calls it.
+ *
+ * <p>
+ * Reading never waits: it returns whatever has arrived. Writing waits while
+ * the connection's window is full, and writes nothing more once the other end
+ * has stopped answering.
+ */
+public class Socket extends OpenFile {
+	private Socket(Connection connection, int remoteLink, int remotePort) {
+		super(null, "socket to (" + remoteLink + ":" + remotePort + ")");
+
+		this.connection = connection;
+		this.remoteLink = remoteLink;
+		this.remotePort = remotePort;
+	}
+
+	/**
+	 * Connect to the specified port on the specified machine, waiting until
+	 * the connection is accepted.
+	 *
+	 * @param postOffice the post office to use.
+	 * @param host the link address of the remote machine.
+	 * @param port the port on which the remote machine is accepting.
+	 * @return the new socket, or <tt>null</tt> if the arguments are invalid or
+	 * no port is free.
+	 */
+	public static Socket connect(PostOffice postOffice, int host, int port) {
+		if (host < 0 || host >= Packet.linkAddressLimit || port < 0
+				|| port >= MailMessage.portLimit)
+			return null;
+
+		int localPort = allocatePort();
+		if (localPort < 0)
+			return null;
+
+		int localLink = Machine.networkLink().getLinkAddress();
+		int[] ports = new int[] { localPort };
+		long timeout = synTimeout;
+
+		while (true) {
+			postOffice.send(handshake(host, port, localLink, localPort, syn));
+
+			MailMessage reply = postOffice.receive(ports, timeout);
+
+			// anything else on the port is from before the handshake
+			while (reply != null && !isHandshake(reply, synAck, host))
+				reply = postOffice.tryReceive(localPort);
+
+			if (reply != null) {
+				Connection connection = new Connection(postOffice, localPort,
+						host, reply.srcPort);
+				return new Socket(connection, host, reply.srcPort);
+			}
+
+			timeout = Math.min(timeout * 2, maxSynTimeout);
+		}
+	}
+
+	/**
+	 * Accept a connection request waiting on the specified port, without
+	 * waiting for one to arrive.
+	 *
+	 * @param postOffice the post office to use.
+	 * @param port the port to accept a connection on.
+	 * @return the new socket, or <tt>null</tt> if no request is waiting or no
+	 * port is free.
+	 */
+	public static Socket accept(PostOffice postOffice, int port) {
+		if (port < 0 || port >= MailMessage.portLimit)
+			return null;
+
+		int localLink = Machine.networkLink().getLinkAddress();
+
+		MailMessage request;
+		while ((request = postOffice.tryReceive(port)) != null) {
+			if (!isHandshake(request, syn, request.packet.srcLink))
+				continue;
+
+			int remoteLink = request.packet.srcLink;
+			int remotePort = request.srcPort;
+			Integer key = Integer.valueOf(remoteLink * MailMessage.portLimit
+					+ remotePort);
+
+			lock.acquire();
+			Socket accepted = connected.get(key);
+			lock.release();
+
+			if (accepted != null) {
+				// our answer was lost; answer again
+				postOffice.send(handshake(remoteLink, remotePort, localLink,
+						accepted.connection.localPort(), synAck));
+				continue;
+			}
+
+			int localPort = allocatePort();
+			if (localPort < 0)
+				return null;
+
+			Connection connection = new Connection(postOffice, localPort,
+					remoteLink, remotePort);
+			Socket socket = new Socket(connection, remoteLink, remotePort);
+			socket.key = key;
+
+			lock.acquire();
+			connected.put(key, socket);
+			lock.release();
+
+			postOffice.send(handshake(remoteLink, remotePort, localLink,
+					localPort, synAck));
+
+			return socket;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Read up to <i>length</i> bytes that have already arrived, without
+	 * waiting, handing them to <i>sink</i>.
+	 *
+	 * @param sink where to put the bytes read.
+	 * @param length the maximum number of bytes to read.
+	 * @return the number of bytes read.
+	 */
+	public int read(Connection.Sink sink, int length) {
+		return connection.receive(sink, length, false);
+	}
+
+	/**
+	 * Write <i>length</i> bytes taken from <i>source</i>.
+	 *
+	 * @param source where to get the bytes to write.
+	 * @param length the number of bytes to write.
+	 * @return the number of bytes written.
+	 */
+	public int write(Connection.Source source, int length) {
+		return connection.send(source, length);
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+		final byte[] data = buf;
+		final int start = offset;
+
+		return read(new Connection.Sink() {
+			public int put(byte[] payload, int payloadOffset, int n) {
+				System.arraycopy(payload, payloadOffset, data, start + pos, n);
+				pos += n;
+				return n;
+			}
+
+			private int pos = 0;
+		}, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+		return connection.send(buf, offset, length);
+	}
+
+	/**
+	 * Close this socket. Returns at once; a kernel thread waits for the
+	 * remaining data to be acknowledged, or for the other end to be given up
+	 * on, then releases the port.
+	 */
+	public void close() {
+		KThread closer = new KThread(new Runnable() {
+			public void run() {
+				connection.close();
+
+				lock.acquire();
+				if (key != null)
+					connected.remove(key);
+				portsInUse[connection.localPort()] = false;
+				lock.release();
+			}
+		}).setName("closing " + getName());
+		closer.fork();
+	}
+
+	/**
+	 * Return the link address of the machine at the other end.
+	 *
+	 * @return the remote link address.
+	 */
+	public int remoteLink() {
+		return remoteLink;
+	}
+
+	/**
+	 * Return the port at the other end.
+	 *
+	 * @return the remote port.
+	 */
+	public int remotePort() {
+		return remotePort;
+	}
+
+	private static int allocatePort() {
+		lock.acquire();
+
+		int port = -1;
+		for (int i = MailMessage.portLimit / 2; i < MailMessage.portLimit; i++) {
+			if (!portsInUse[i]) {
+				portsInUse[i] = true;
+				port = i;
+				break;
+			}
+		}
+
+		lock.release();
+
+		return port;
+	}
+
+	private static MailMessage handshake(int dstLink, int dstPort,
+			int srcLink, int srcPort, byte type) {
+		try {
+			return new MailMessage(dstLink, dstPort, srcLink, srcPort,
+					new byte[] { type });
+		}
+		catch (MalformedPacketException e) {
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	private static boolean isHandshake(MailMessage mail, byte type, int link) {
+		return mail.contentsLength == 1 && mail.packet.srcLink == link
+				&& mail.buffer[mail.contentsOffset] == type;
+	}
+
+	/**
+	 * Connect to a server thread accepting on this machine and echo a few
+	 * kilobytes through it, one request at a time, reporting the request
+	 * throughput in simulated time.
+	 *
+	 * @param postOffice the post office to use.
+	 */
+	public static void selfTest(final PostOffice postOffice) {
+		final int port = 4, requests = 50, requestSize = 64;
+
+		KThread server = new KThread(new Runnable() {
+			public void run() {
+				Socket socket;
+				while ((socket = accept(postOffice, port)) == null)
+					KThread.yield();
+
+				byte[] buf = new byte[requestSize];
+				for (int echoed = 0; echoed < requests * requestSize;) {
+					int n = socket.read(buf, 0, buf.length);
+					if (n == 0)
+						KThread.yield();
+					socket.write(buf, 0, n);
+					echoed += n;
+				}
+
+				socket.close();
+			}
+		}).setName("socket test server");
+		server.fork();
+
+		long startTime = Machine.timer().getTime();
+
+		Socket socket = connect(postOffice,
+				Machine.networkLink().getLinkAddress(), port);
+		Lib.assertTrue(socket != null);
+
+		byte[] request = new byte[requestSize], reply = new byte[requestSize];
+		for (int i = 0; i < requests; i++) {
+			for (int j = 0; j < requestSize; j++)
+				request[j] = (byte) (i + j);
+			socket.write(request, 0, requestSize);
+
+			for (int got = 0; got < requestSize;) {
+				int n = socket.read(reply, got, requestSize - got);
+				if (n == 0)
+					KThread.yield();
+				got += n;
+			}
+
+			for (int j = 0; j < requestSize; j++)
+				Lib.assertTrue(reply[j] == (byte) (i + j),
+						"Socket test reply corrupted.");
+		}
+
+		long ticks = Machine.timer().getTime() - startTime;
+		server.join();
+		socket.close();
+
+		System.out.println("Socket test: " + requests + " requests of "
+				+ requestSize + " bytes in " + ticks + " ticks, "
+				+ (requests * 1000000L / ticks) + " requests per million ticks");
+	}
+
+	private Connection connection;
+
+	private int remoteLink, remotePort;
+
+	/** This socket's entry in <tt>connected</tt>, if it was accepted. */
+	private Integer key = null;
+
+	private static final byte syn = 1, synAck = 2;
+
+	private static final long synTimeout = Config.getInteger(
+			"Socket.synTimeout", 2000);
+
+	private static final long maxSynTimeout = 64000;
+
+	private static Lock lock = new Lock("socket table");
+
+	private static boolean[] portsInUse = new boolean[MailMessage.portLimit];
+
+	/**
+	 * The accepted sockets, by the client's link address and port, so a
+	 * repeated request can be recognized.
+	 */
+	private static HashMap<Integer, Socket> connected = new HashMap<Integer, Socket>();
+}
@@ -275,10 +275,36 @@ public class NachosSecurityManager extends SecurityManager {
 			}
 		}
 
+		// the JVM's virtual thread scheduler adds carrier threads on demand,
+		// from whichever virtual TCB happens to block or wake another
+		if (!isPrivileged() && isAddingCarrierThread())
+			return;
+
 		// default to requiring privilege
 		verifyPrivilege(perm);
 	}
 
+	/**
+	 * Test whether the current permission check was caused by the JVM's
+	 * virtual thread scheduler creating a carrier thread, rather than by
+	 * Nachos code creating a thread of its own.
+	 * 
+	 * @return <tt>true</tt> if a carrier thread is being created.
+	 */
+	private boolean isAddingCarrierThread() {
+		boolean creatingWorker = false, schedulingVirtual = false;
+
+		for (StackTraceElement e : new Throwable().getStackTrace()) {
+			if (e.getClassName().equals("java.util.concurrent.ForkJoinPool")
+					&& e.getMethodName().equals("createWorker"))
+				creatingWorker = true;
+			else if (e.getClassName().equals("java.lang.VirtualThread"))
+				schedulingVirtual = true;
+		}
+
+		return creatingWorker && schedulingVirtual;
+	}
+
 	/**
 	 * Called by the <tt>java.lang.Thread</tt> constructor to determine a thread
 	 * group for a child thread of the current thread. The caller must be
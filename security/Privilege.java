@@ -141,7 +141,29 @@ public abstract class Privilege {
 	 */
 	public interface InterruptPrivilege {
 		/**
-		 * Schedule an interrupt to occur at some time in the future.
+		 * Register an interrupt handler, so that it can later be scheduled with
+		 * <tt>schedule(long, int)</tt> without allocating anything.
+		 *
+		 * @param type a name for the type of interrupt being scheduled.
+		 * @param handler the interrupt handler to call.
+		 * @return a handle identifying the registered handler.
+		 */
+		public int register(String type, Runnable handler);
+
+		/**
+		 * Schedule a registered interrupt handler to occur at some time in the
+		 * future.
+		 *
+		 * @param when the number of ticks until the interrupt should occur.
+		 * @param handle the handle returned by <tt>register()</tt>.
+		 */
+		public void schedule(long when, int handle);
+
+		/**
+		 * Schedule an interrupt to occur at some time in the future. Devices
+		 * that schedule the same handler repeatedly should use
+		 * <tt>register()</tt> and <tt>schedule(long, int)</tt> instead; each
+		 * call here registers <i>handler</i> anew, until it fires.
 		 * 
 		 * @param when the number of ticks until the interrupt should occur.
 		 * @param type a name for the type of interrupt being scheduled.
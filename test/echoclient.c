@@ -0,0 +1,68 @@
+/*
+ * echoclient.c
+ *
+ * Connect to echoserver on the given host (link address 0 by default), send
+ * a number of fixed-size requests one at a time, and check each reply.  The
+ * simulated time for the whole run is printed by Nachos when it halts.
+ *
+ *	echoclient [host [requests [size]]]
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PORT 15
+
+char request[256], reply[256];
+
+int main(int argc, char** argv)
+{
+  int host = 0, requests = 100, size = 64;
+  int fd, i, j, got, n;
+
+  if (argc > 1)
+    host = atoi(argv[1]);
+  if (argc > 2)
+    requests = atoi(argv[2]);
+  if (argc > 3)
+    size = atoi(argv[3]);
+  if (size > sizeof(request))
+    size = sizeof(request);
+
+  fd = connect(host, PORT);
+  if (fd == -1) {
+    printf("echoclient: connect failed\n");
+    return 1;
+  }
+
+  for (i = 0; i < requests; i++) {
+    for (j = 0; j < size; j++)
+      request[j] = i + j;
+
+    if (write(fd, request, size) != size) {
+      printf("echoclient: write failed\n");
+      return 1;
+    }
+
+    /* read() never waits, so poll until the whole reply is in */
+    for (got = 0; got < size; got += n) {
+      n = read(fd, reply + got, size - got);
+      if (n == -1) {
+        printf("echoclient: read failed\n");
+        return 1;
+      }
+    }
+
+    for (j = 0; j < size; j++) {
+      if (reply[j] != (char) (i + j)) {
+        printf("echoclient: bad reply to request %d\n", i);
+        return 1;
+      }
+    }
+  }
+
+  printf("echoclient: %d requests of %d bytes\n", requests, size);
+  close(fd);
+  return 0;
+}
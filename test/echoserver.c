@@ -0,0 +1,37 @@
+/*
+ * echoserver.c
+ *
+ * Accept a connection on port 15 and echo back everything received on it.
+ * The kernel never reports a connection closed by the other end, so the
+ * server keeps serving its first client.  Run echoclient on another machine
+ * to measure request throughput.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PORT 15
+
+int main()
+{
+  char buffer[256];
+  int fd, n;
+
+  while (1) {
+    /* accept() never waits, so poll for a client */
+    while ((fd = accept(PORT)) == -1)
+      ;
+
+    printf("echoserver: client connected\n");
+
+    while ((n = read(fd, buffer, sizeof(buffer))) != -1) {
+      if (n > 0 && write(fd, buffer, n) != n)
+        break;
+    }
+
+    close(fd);
+  }
+
+  return 0;
+}
@@ -1,15 +1,13 @@
 package nachos.threads;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.PriorityQueue;
 
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
- * until a certain time.
+ * until a certain time. Preemption is off unless <tt>Alarm.preempt</tt> is
+ * set.
  */
 public class Alarm {
 	/**
@@ -29,21 +27,23 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes any timeouts
+	 * that are due. If preemption is on, causes the current thread to yield,
+	 * forcing a context switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
 		long time = Machine.timer().getTime();
-	    Iterator<Entry<Long, Semaphore>> it = waitQueue.entrySet().iterator();
-	    while (it.hasNext()) {
-	    	Entry<Long, Semaphore> entry = it.next();
-	    	long wakeTime = entry.getKey();
-			if (time >= wakeTime) {
-				entry.getValue().V();
-				it.remove();
+
+		while (!timeouts.isEmpty() && timeouts.peek().wakeTime <= time) {
+			Timeout timeout = timeouts.poll();
+			if (!timeout.cancelled) {
+				timeout.fired = true;
+				timeout.handler.run();
 			}
 		}
+
+		if (preempt)
+			KThread.preempt();
 	}
 
 	/**
@@ -59,12 +59,101 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		long wakeTime = Machine.timer().getTime() + x;
-		Semaphore s = new Semaphore(0);
-		waitQueue.put(wakeTime, s);
-		s.P();
+		final KThread thread = KThread.currentThread();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		schedule(x, new Runnable() {
+			public void run() {
+				thread.ready();
+			}
+		});
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
 	}
-	
+
+	/**
+	 * Arrange for <i>handler</i> to be run by the timer interrupt handler,
+	 * during the first timer interrupt at least <i>x</i> ticks from now. The
+	 * handler runs with interrupts disabled, so it may wake threads but must
+	 * not block. Timeouts that come due in the same interrupt run in the order
+	 * they were scheduled.
+	 * 
+	 * @param x the minimum number of clock ticks to wait.
+	 * @param handler the code to run when the timeout fires.
+	 * @return a <tt>Timeout</tt> that can be used to cancel the handler.
+	 */
+	public Timeout schedule(long x, Runnable handler) {
+		Lib.assertTrue(x >= 0 && handler != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Timeout timeout = new Timeout(Machine.timer().getTime() + x,
+				nextSequence++, handler);
+		timeouts.add(timeout);
+
+		Machine.interrupt().restore(intStatus);
+
+		return timeout;
+	}
+
+	/**
+	 * A handler scheduled to run at some later timer interrupt.
+	 */
+	public static class Timeout implements Comparable<Timeout> {
+		private Timeout(long wakeTime, long sequence, Runnable handler) {
+			this.wakeTime = wakeTime;
+			this.sequence = sequence;
+			this.handler = handler;
+		}
+
+		/**
+		 * Prevent this timeout's handler from running, if it has not run
+		 * already. A cancelled timeout stays queued until it comes due, but is
+		 * then discarded without running.
+		 * 
+		 * @return <tt>true</tt> if the handler will now never run,
+		 * <tt>false</tt> if it already ran or was already cancelled.
+		 */
+		public boolean cancel() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			boolean cancelledNow = !fired && !cancelled;
+			cancelled = true;
+
+			Machine.interrupt().restore(intStatus);
+
+			return cancelledNow;
+		}
+
+		/**
+		 * Test whether this timeout's handler has run.
+		 * 
+		 * @return <tt>true</tt> if the handler has run.
+		 */
+		public boolean hasFired() {
+			return fired;
+		}
+
+		public int compareTo(Timeout other) {
+			if (wakeTime != other.wakeTime)
+				return wakeTime < other.wakeTime ? -1 : 1;
+			else if (sequence != other.sequence)
+				return sequence < other.sequence ? -1 : 1;
+			else
+				return 0;
+		}
+
+		private long wakeTime;
+
+		private long sequence;
+
+		private Runnable handler;
+
+		private boolean fired = false, cancelled = false;
+	}
+
 	public static void selftest() {
 	    KThread t1 = new KThread(new Runnable() {
 	        public void run() {
@@ -82,5 +171,15 @@ public class Alarm {
 	    t1.join();
 	}
 	
-	private HashMap<Long, Semaphore> waitQueue = new HashMap<Long, Semaphore>();
+	/**
+	 * Pending timeouts, soonest first. A <tt>PriorityQueue</tt> rather than a
+	 * map keyed by wake time, since any number of threads may want to wake at
+	 * the same tick.
+	 */
+	private PriorityQueue<Timeout> timeouts = new PriorityQueue<Timeout>();
+
+	private long nextSequence = 0;
+
+	private static final boolean preempt = Config.getBoolean("Alarm.preempt",
+			false);
 }
@@ -0,0 +1,245 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * A synchronized queue with a fixed capacity, backed by a ring buffer. Unlike
+ * <tt>SynchList</tt>, it allocates nothing per element and synchronizes by
+ * disabling interrupts rather than with a <tt>Lock</tt>, so its non-blocking
+ * operations, <tt>offer()</tt>, <tt>tryRemoveFirst()</tt>, and
+ * <tt>drainTo()</tt>, may be called from an interrupt handler.
+ *
+ * <p>
+ * <tt>add()</tt> waits while the queue is full, so a fast producer is held
+ * back to the pace of its consumers; <tt>offer()</tt> refuses instead.
+ * <tt>drainTo()</tt> moves many elements for the price of one call.
+ *
+ * <p>
+ * A bounded queue is <tt>Selectable</tt>: it is ready when it is non-empty.
+ */
+public class BoundedSynchList implements Selectable {
+	/**
+	 * Allocate a new bounded synchronized queue.
+	 *
+	 * @param capacity the maximum number of elements the queue can hold.
+	 */
+	public BoundedSynchList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		ring = new Object[capacity];
+	}
+
+	/**
+	 * Add the specified object to the end of the queue, waiting while the
+	 * queue is full. If another thread is waiting in <tt>removeFirst()</tt>,
+	 * it is woken up.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 */
+	public void add(Object o) {
+		Lib.assertTrue(o != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (count == ring.length) {
+			notFull.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		put(o);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Add the specified object to the end of the queue if there is room,
+	 * without waiting.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added, <tt>false</tt> if the
+	 * queue was full.
+	 */
+	public boolean offer(Object o) {
+		Lib.assertTrue(o != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean added = (count < ring.length);
+		if (added)
+			put(o);
+
+		Machine.interrupt().restore(intStatus);
+
+		return added;
+	}
+
+	/**
+	 * Remove an object from the front of the queue, blocking until the queue is
+	 * non-empty if necessary.
+	 *
+	 * @return the element removed from the front of the queue.
+	 */
+	public Object removeFirst() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (count == 0) {
+			notEmpty.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Object o = take();
+
+		Machine.interrupt().restore(intStatus);
+
+		return o;
+	}
+
+	/**
+	 * Remove an object from the front of the queue, if there is one, without
+	 * waiting.
+	 *
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue is empty.
+	 */
+	public Object tryRemoveFirst() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Object o = (count > 0) ? take() : null;
+
+		Machine.interrupt().restore(intStatus);
+
+		return o;
+	}
+
+	/**
+	 * Move up to <i>max</i> elements from the front of the queue to the end of
+	 * <i>c</i>, in order, without waiting.
+	 *
+	 * @param c the collection to add the elements to.
+	 * @param max the maximum number of elements to move.
+	 * @return the number of elements moved.
+	 */
+	public int drainTo(Collection<Object> c, int max) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int n = Math.min(max, count);
+		for (int i = 0; i < n; i++)
+			c.add(take());
+
+		Machine.interrupt().restore(intStatus);
+
+		return n;
+	}
+
+	/**
+	 * Return the number of elements in the queue.
+	 *
+	 * @return the number of elements in the queue.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Return the maximum number of elements the queue can hold.
+	 *
+	 * @return the capacity of the queue.
+	 */
+	public int capacity() {
+		return ring.length;
+	}
+
+	public boolean isReady() {
+		return count > 0;
+	}
+
+	public void addSelector(Selector selector) {
+		if (selectors == null)
+			selectors = new LinkedList<Selector>();
+		selectors.add(selector);
+	}
+
+	public void removeSelector(Selector selector) {
+		selectors.remove(selector);
+	}
+
+	/**
+	 * Append an element and wake a consumer. Interrupts must be disabled and
+	 * the queue must not be full.
+	 */
+	private void put(Object o) {
+		ring[(head + count) % ring.length] = o;
+		count++;
+
+		KThread thread = notEmpty.nextThread();
+		if (thread != null)
+			thread.ready();
+
+		Selector.signalAll(selectors, this);
+	}
+
+	/**
+	 * Remove the first element and wake a producer. Interrupts must be
+	 * disabled and the queue must not be empty.
+	 */
+	private Object take() {
+		Object o = ring[head];
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		count--;
+
+		KThread thread = notFull.nextThread();
+		if (thread != null)
+			thread.ready();
+
+		return o;
+	}
+
+	/**
+	 * Test that a producer blocks on a full queue, and that
+	 * <tt>drainTo()</tt> preserves order.
+	 */
+	public static void selfTest() {
+		final BoundedSynchList list = new BoundedSynchList(4);
+		final int n = 20;
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < n; i++)
+					list.add(Integer.valueOf(i));
+			}
+		}).setName("bounded producer");
+		producer.fork();
+
+		KThread.yield();
+		Lib.assertTrue(list.size() == 4 && !list.offer("extra"),
+				"BoundedSynchList exceeded its capacity.");
+
+		LinkedList<Object> drained = new LinkedList<Object>();
+		while (drained.size() < n) {
+			if (list.drainTo(drained, 3) == 0)
+				drained.add(list.removeFirst());
+		}
+
+		for (int i = 0; i < n; i++)
+			Lib.assertTrue(((Integer) drained.get(i)).intValue() == i,
+					"BoundedSynchList reordered elements.");
+
+		producer.join();
+	}
+
+	private Object[] ring;
+
+	private int head = 0, count = 0;
+
+	private ThreadQueue notEmpty = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private ThreadQueue notFull = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private LinkedList<Selector> selectors = null;
+}
@@ -0,0 +1,291 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <i>channel</i> transfers 32-bit words from speakers to listeners, in the
+ * order they were spoken. A channel with capacity 0 is a rendezvous, like a
+ * <tt>Communicator</tt>: a speaker does not return until a listener has taken
+ * its word. A channel with capacity <i>N</i> buffers up to <i>N</i> words in a
+ * ring, so a speaker only waits when the ring is full.
+ *
+ * <p>
+ * Words are handed off directly. A speaker that finds a listener waiting
+ * copies its words straight into the listener's array and wakes it, and a
+ * listener that finds a speaker waiting copies straight out of the speaker's
+ * array. A woken thread never has to compete for anything to finish its
+ * transfer, since the thread that woke it already did the work. The batch
+ * operations, <tt>speakAll()</tt> and <tt>listenAll()</tt>, transfer a whole
+ * array for the cost of at most one sleep.
+ *
+ * <p>
+ * Like <tt>Semaphore</tt>, a channel disables interrupts for synchronization.
+ * A channel is <tt>Selectable</tt>: it is ready when <tt>listen()</tt> would
+ * not block.
+ */
+public class Channel implements Selectable {
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity the number of words this channel can buffer, or 0 for a
+	 * rendezvous channel.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		ring = new int[capacity];
+	}
+
+	/**
+	 * Transfer <i>word</i> to a listener. Waits until a listener has taken it,
+	 * or until there is room for it in the buffer.
+	 *
+	 * @param word the integer to transfer.
+	 */
+	public void speak(int word) {
+		speakAll(new int[] { word }, 0, 1);
+	}
+
+	/**
+	 * Wait for a word to be spoken, and return it.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int listen() {
+		int[] word = new int[1];
+		listenAll(word, 0, 1);
+		return word[0];
+	}
+
+	/**
+	 * Transfer every word in <i>words</i>, in order. Returns once the last of
+	 * them has been taken by a listener or buffered. The words of one batch
+	 * are never interleaved with those of another speaker's batch.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		speakAll(words, 0, words.length);
+	}
+
+	/**
+	 * Transfer <i>length</i> words from <i>words</i>, starting at
+	 * <i>offset</i>.
+	 *
+	 * @param words the array holding the integers to transfer.
+	 * @param offset the index of the first word to transfer.
+	 * @param length the number of words to transfer.
+	 */
+	public void speakAll(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int pos = offset, end = offset + length;
+
+		// listeners only wait while the ring is empty, so serve them first
+		while (pos < end && !listeners.isEmpty()) {
+			Waiter listener = listeners.getFirst();
+			int n = Math.min(end - pos, listener.end - listener.pos);
+			System.arraycopy(words, pos, listener.words, listener.pos, n);
+			pos += n;
+			listener.pos += n;
+
+			if (listener.pos == listener.end) {
+				listeners.removeFirst();
+				listener.thread.ready();
+			}
+		}
+
+		// speakers only wait while the ring is full, so this can't cut in
+		while (pos < end && count < ring.length)
+			put(words[pos++]);
+
+		if (pos < end) {
+			Selector.signalAll(selectors, this);
+			speakers.add(new Waiter(words, pos, end));
+			KThread.sleep();
+		}
+		else if (count > 0) {
+			Selector.signalAll(selectors, this);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Fill <i>words</i> with the next words spoken, waiting until there are
+	 * enough of them.
+	 *
+	 * @param words the array to receive the integers transferred.
+	 */
+	public void listenAll(int[] words) {
+		listenAll(words, 0, words.length);
+	}
+
+	/**
+	 * Receive the next <i>length</i> words spoken into <i>words</i>, starting
+	 * at <i>offset</i>, waiting until there are enough of them.
+	 *
+	 * @param words the array to receive the integers transferred.
+	 * @param offset the index at which to store the first word.
+	 * @param length the number of words to receive.
+	 */
+	public void listenAll(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int pos = offset, end = offset + length;
+
+		while (pos < end) {
+			if (count > 0) {
+				// buffered words are older than any waiting speaker's
+				words[pos++] = take();
+				refill();
+			}
+			else if (!speakers.isEmpty()) {
+				Waiter speaker = speakers.getFirst();
+				int n = Math.min(end - pos, speaker.end - speaker.pos);
+				System.arraycopy(speaker.words, speaker.pos, words, pos, n);
+				pos += n;
+				speaker.pos += n;
+
+				if (speaker.pos == speaker.end) {
+					speakers.removeFirst();
+					speaker.thread.ready();
+				}
+			}
+			else {
+				break;
+			}
+		}
+
+		if (pos < end) {
+			listeners.add(new Waiter(words, pos, end));
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	public boolean isReady() {
+		return count > 0 || !speakers.isEmpty();
+	}
+
+	public void addSelector(Selector selector) {
+		if (selectors == null)
+			selectors = new LinkedList<Selector>();
+		selectors.add(selector);
+	}
+
+	public void removeSelector(Selector selector) {
+		selectors.remove(selector);
+	}
+
+	/**
+	 * Return the number of words this channel can buffer.
+	 *
+	 * @return the capacity of this channel.
+	 */
+	public int capacity() {
+		return ring.length;
+	}
+
+	private void put(int word) {
+		ring[(head + count) % ring.length] = word;
+		count++;
+	}
+
+	private int take() {
+		int word = ring[head];
+		head = (head + 1) % ring.length;
+		count--;
+		return word;
+	}
+
+	/**
+	 * Move words from waiting speakers into the ring while there is room,
+	 * waking each speaker whose last word has been moved.
+	 */
+	private void refill() {
+		while (count < ring.length && !speakers.isEmpty()) {
+			Waiter speaker = speakers.getFirst();
+			put(speaker.words[speaker.pos++]);
+
+			if (speaker.pos == speaker.end) {
+				speakers.removeFirst();
+				speaker.thread.ready();
+			}
+		}
+	}
+
+	/**
+	 * A thread waiting to transfer the words from <tt>pos</tt> up to
+	 * <tt>end</tt> of its array. Whoever completes the transfer wakes it.
+	 */
+	private static class Waiter {
+		Waiter(int[] words, int pos, int end) {
+			this.thread = KThread.currentThread();
+			this.words = words;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		KThread thread;
+
+		int[] words;
+
+		int pos, end;
+	}
+
+	/**
+	 * Test a rendezvous and a buffered channel with one speaker and one
+	 * listener, mixing single-word and batch transfers.
+	 */
+	public static void selfTest() {
+		selfTest(0);
+		selfTest(3);
+	}
+
+	private static void selfTest(int capacity) {
+		final Channel channel = new Channel(capacity);
+		final int n = 20;
+
+		KThread speaker = new KThread(new Runnable() {
+			public void run() {
+				int[] words = new int[n / 2];
+				for (int i = 0; i < n / 2; i++)
+					channel.speak(i);
+				for (int i = 0; i < n / 2; i++)
+					words[i] = n / 2 + i;
+				channel.speakAll(words);
+			}
+		}).setName("channel speaker");
+		speaker.fork();
+
+		int[] words = new int[n];
+		channel.listenAll(words, 0, 7);
+		for (int i = 7; i < n; i++)
+			words[i] = channel.listen();
+
+		speaker.join();
+
+		for (int i = 0; i < n; i++)
+			Lib.assertTrue(words[i] == i, "Channel reordered words.");
+	}
+
+	private int[] ring;
+
+	private int head = 0, count = 0;
+
+	private LinkedList<Waiter> speakers = new LinkedList<Waiter>();
+
+	private LinkedList<Waiter> listeners = new LinkedList<Waiter>();
+
+	private LinkedList<Selector> selectors = null;
+}
@@ -8,8 +8,14 @@ import nachos.machine.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ * 
+ * <p>
+ * A communicator is a <tt>Channel</tt> with no buffer, so a speaker and a
+ * listener are paired off directly, without either of them going back to
+ * sleep on a lock. A communicator is <tt>Selectable</tt>: it is ready when a
+ * speaker is waiting, so <tt>listen()</tt> would not block.
  */
-public class Communicator {
+public class Communicator implements Selectable {
 	/**
 	 * Allocate a new communicator.
 	 */
@@ -27,15 +33,7 @@ public class Communicator {
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
-		lock.acquire();
-		while (set || listener_count == 0) {
-			listeners.wake();
-			speakers.sleep();
-		}
-		message = word;
-		set = true;
-		listeners.wake();
-		lock.release();
+		channel.speak(word);
 	}
 
 	/**
@@ -45,18 +43,19 @@ public class Communicator {
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		int word;
-		lock.acquire();
-		while (!set) {
-			speakers.wake();
-			listener_count++;
-			listeners.sleep();
-		}
-		word = message;
-		set = false;
-		listener_count--;
-		lock.release();
-		return word;
+		return channel.listen();
+	}
+
+	public boolean isReady() {
+		return channel.isReady();
+	}
+
+	public void addSelector(Selector selector) {
+		channel.addSelector(selector);
+	}
+
+	public void removeSelector(Selector selector) {
+		channel.removeSelector(selector);
 	}
 
 	public static void selfTest(){
@@ -108,10 +107,5 @@ public class Communicator {
 	    //Lib.assertTrue(times[1] > times[3], "speak() returned before listen() called.");
 	    
 	}
-	private Lock lock = new Lock();
-	private Condition speakers = new Condition(lock);
-	private Condition listeners = new Condition(lock);
-	private int message;
-	private int listener_count = 0;
-	private boolean set = false;
-}
\ No newline at end of file
+	private Channel channel = new Channel(0);
+}
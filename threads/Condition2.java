@@ -1,5 +1,6 @@
 package nachos.threads;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 
 import nachos.machine.*;
@@ -9,7 +10,18 @@ import nachos.machine.*;
  * synchronization.
  * 
  * <p>
- * You must implement this.
+ * Besides the usual <tt>sleep()</tt>, <tt>wake()</tt>, and <tt>wakeAll()</tt>,
+ * a thread can sleep for a bounded number of ticks with <tt>sleepFor()</tt>,
+ * and can sleep under a <i>key</i>, so that <tt>wake(key)</tt> and
+ * <tt>wakeAll(key)</tt> wake only the waiters that registered a matching key
+ * (compared with <tt>equals()</tt>). A condition with many waiters that each
+ * wait for something different can then wake exactly the right ones, instead
+ * of broadcasting to all of them.
+ * 
+ * <p>
+ * Waiters are kept in an intrusive doubly-linked list, oldest first, and also
+ * in a list per key, so waking, timing out, and keyed wakes are all O(1) per
+ * waiter woken.
  * 
  * @see nachos.threads.Condition
  */
@@ -23,7 +35,6 @@ public class Condition2 {
 	 */
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-		this.waitQueue = new LinkedList<KThread>();
 	}
 
 	/**
@@ -33,36 +44,226 @@ public class Condition2 {
 	 * reacquire the lock before <tt>sleep()</tt> returns.
 	 */
 	public void sleep() {
+		sleep(null, -1);
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but register <i>key</i> so that
+	 * <tt>wake(key)</tt> and <tt>wakeAll(key)</tt> will wake this thread.
+	 * 
+	 * @param key the key to sleep under.
+	 */
+	public void sleep(Object key) {
+		sleep(key, -1);
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but give up waiting once at least <i>ticks</i>
+	 * ticks have passed. Either way, the associated lock is held again when
+	 * this returns.
+	 * 
+	 * @param ticks the maximum number of ticks to wait.
+	 * @return <tt>true</tt> if another thread woke this one, <tt>false</tt> if
+	 * the wait timed out.
+	 */
+	public boolean sleepFor(long ticks) {
+		return sleepFor(null, ticks);
+	}
+
+	/**
+	 * Like <tt>sleepFor()</tt>, but under a key, as with <tt>sleep(key)</tt>.
+	 * 
+	 * @param key the key to sleep under.
+	 * @param ticks the maximum number of ticks to wait.
+	 * @return <tt>true</tt> if another thread woke this one, <tt>false</tt> if
+	 * the wait timed out.
+	 */
+	public boolean sleepFor(Object key, long ticks) {
+		Lib.assertTrue(ticks >= 0);
+		return sleep(key, ticks);
+	}
+
+	private boolean sleep(Object key, long ticks) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		boolean intStatus = Machine.interrupt().disable();
+
+		final Waiter waiter = new Waiter(KThread.currentThread(), key);
+		enqueue(waiter);
 		conditionLock.release();
-		waitQueue.add(KThread.currentThread());
+
+		Alarm.Timeout timeout = null;
+		if (ticks >= 0) {
+			timeout = ThreadedKernel.alarm.schedule(ticks, new Runnable() {
+				public void run() {
+					if (waiter.queued) {
+						dequeue(waiter);
+						waiter.timedOut = true;
+						waiter.thread.ready();
+					}
+				}
+			});
+		}
+
 		KThread.sleep();
+
+		if (timeout != null)
+			timeout.cancel();
+
 		conditionLock.acquire();
 		Machine.interrupt().restore(intStatus);
+
+		return !waiter.timedOut;
 	}
 
 	/**
-	 * Wake up at most one thread sleeping on this condition variable. The
-	 * current thread must hold the associated lock.
+	 * Wake up at most one thread sleeping on this condition variable, the one
+	 * that has been waiting longest. The current thread must hold the
+	 * associated lock.
 	 */
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
 		boolean intStatus = Machine.interrupt().disable();
-		if (!waitQueue.isEmpty())
-			waitQueue.removeFirst().ready();
+		if (head != null)
+			wake(head);
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Wake up the thread that has been waiting longest under <i>key</i>, if
+	 * any. The current thread must hold the associated lock.
+	 * 
+	 * @param key the key to match.
+	 * @return <tt>true</tt> if a thread was woken.
+	 */
+	public boolean wake(Object key) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KeyList list = keys.get(key);
+		if (list != null)
+			wake(list.head);
+
+		Machine.interrupt().restore(intStatus);
+
+		return list != null;
+	}
+
 	/**
 	 * Wake up all threads sleeping on this condition variable. The current
 	 * thread must hold the associated lock.
 	 */
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		while (head != null)
+			wake(head);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wake up all threads sleeping under <i>key</i>. The current thread must
+	 * hold the associated lock.
+	 * 
+	 * @param key the key to match.
+	 * @return the number of threads woken.
+	 */
+	public int wakeAll(Object key) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int woken = 0;
+		KeyList list;
+		while ((list = keys.get(key)) != null) {
+			wake(list.head);
+			woken++;
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return woken;
+	}
+
+	private void wake(Waiter waiter) {
+		dequeue(waiter);
+		waiter.thread.ready();
+	}
+
+	private void enqueue(Waiter waiter) {
+		waiter.prev = tail;
+		if (tail != null)
+			tail.next = waiter;
+		else
+			head = waiter;
+		tail = waiter;
+
+		KeyList list = keys.get(waiter.key);
+		if (list == null) {
+			list = new KeyList();
+			keys.put(waiter.key, list);
+		}
+		waiter.keyPrev = list.tail;
+		if (list.tail != null)
+			list.tail.keyNext = waiter;
+		else
+			list.head = waiter;
+		list.tail = waiter;
+
+		waiter.queued = true;
+	}
+
+	private void dequeue(Waiter waiter) {
+		if (waiter.prev != null)
+			waiter.prev.next = waiter.next;
+		else
+			head = waiter.next;
+		if (waiter.next != null)
+			waiter.next.prev = waiter.prev;
+		else
+			tail = waiter.prev;
+
+		KeyList list = keys.get(waiter.key);
+		if (waiter.keyPrev != null)
+			waiter.keyPrev.keyNext = waiter.keyNext;
+		else
+			list.head = waiter.keyNext;
+		if (waiter.keyNext != null)
+			waiter.keyNext.keyPrev = waiter.keyPrev;
+		else
+			list.tail = waiter.keyPrev;
+		if (list.head == null)
+			keys.remove(waiter.key);
+
+		waiter.queued = false;
 	}
-	
+
+	/**
+	 * A sleeping thread, linked into the list of all waiters and into the
+	 * list of waiters with the same key.
+	 */
+	private static class Waiter {
+		Waiter(KThread thread, Object key) {
+			this.thread = thread;
+			this.key = key;
+		}
+
+		KThread thread;
+
+		Object key;
+
+		Waiter prev, next, keyPrev, keyNext;
+
+		boolean queued = false, timedOut = false;
+	}
+
+	private static class KeyList {
+		Waiter head, tail;
+	}
+
 	public static void selfTest(){
 	    final Lock lock = new Lock();
 	    // final Condition empty = new Condition(lock);
@@ -103,7 +304,59 @@ public class Condition2 {
 	    producer.join();
 	}
 
+	/**
+	 * Test timed and keyed sleeps: a timeout fires when nobody wakes the
+	 * sleeper, keyed wakes pick out the right waiters, and
+	 * <tt>wakeAll()</tt> wakes everyone else.
+	 */
+	public static void selfTestTimedKeyed() {
+		final Lock lock = new Lock();
+		final Condition2 cv = new Condition2(lock);
+		final int[] woken = new int[4];
+
+		lock.acquire();
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(!cv.sleepFor(1000), "sleepFor() was woken by nobody.");
+		Lib.assertTrue(Machine.timer().getTime() - start >= 1000,
+				"sleepFor() timed out early.");
+		lock.release();
+
+		KThread[] threads = new KThread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					if (id == 3)
+						Lib.assertTrue(cv.sleepFor(Integer.valueOf(id % 2), 1000000));
+					else
+						cv.sleep(Integer.valueOf(id % 2));
+					woken[id]++;
+					lock.release();
+				}
+			}).setName("cv waiter " + i);
+			threads[i].fork();
+		}
+		KThread.yield();
+
+		lock.acquire();
+		Lib.assertTrue(cv.wakeAll(Integer.valueOf(1)) == 2);
+		Lib.assertTrue(!cv.wake("nobody"));
+		lock.release();
+		threads[1].join();
+		threads[3].join();
+		Lib.assertTrue(woken[0] == 0 && woken[2] == 0);
+
+		lock.acquire();
+		cv.wakeAll();
+		lock.release();
+		threads[0].join();
+		threads[2].join();
+	}
+
 	private Lock conditionLock;
-	
-	private LinkedList<KThread> waitQueue;
+
+	private Waiter head = null, tail = null;
+
+	private HashMap<Object, KeyList> keys = new HashMap<Object, KeyList>();
 }
\ No newline at end of file
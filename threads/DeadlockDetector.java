@@ -0,0 +1,208 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * Watches the wait-for graph formed by <tt>Lock</tt>s: an edge from each
+ * thread blocked in <tt>acquire()</tt> to the lock it wants, and from each
+ * lock to the thread holding it. Enabled by <tt>DeadlockDetector.enabled</tt>.
+ *
+ * <p>
+ * A thread waits for at most one lock and a lock has at most one holder, so
+ * the graph is a set of chains, and a new wait edge closes a cycle exactly
+ * when following the chain from the wanted lock leads back to the waiting
+ * thread. The detector checks this each time a thread blocks, and prints each
+ * deadlock it finds as it is formed.
+ *
+ * <p>
+ * The detector also measures priority inversion. A thread is inverted while it
+ * waits on a chain that passes through a holder with a lower base priority
+ * than its own; when it finally gets the lock, the ticks it waited are counted
+ * against inversion. Under a scheduler without priorities, nothing is ever
+ * inverted.
+ */
+public class DeadlockDetector {
+	private DeadlockDetector() {
+	}
+
+	/**
+	 * Test whether deadlock detection is enabled.
+	 *
+	 * @return <tt>true</tt> if <tt>DeadlockDetector.enabled</tt> is set.
+	 */
+	public static boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * Called with interrupts disabled when <i>thread</i> acquires <i>lock</i>
+	 * without waiting.
+	 */
+	static void acquired(Lock lock, KThread thread) {
+		holders.put(lock, thread);
+	}
+
+	/**
+	 * Called with interrupts disabled when <i>thread</i> is about to block
+	 * waiting for <i>lock</i>. Follows the chain of holders from <i>lock</i>,
+	 * reporting a deadlock if it leads back to <i>thread</i>.
+	 */
+	static void waiting(Lock lock, KThread thread) {
+		int priority = ThreadedKernel.scheduler.getPriority(thread);
+		boolean inverted = false;
+		int length = 0;
+
+		Lock next = lock;
+		while (next != null) {
+			KThread holder = holders.get(next);
+			if (holder == null)
+				break;
+
+			length++;
+			if (ThreadedKernel.scheduler.getPriority(holder) < priority)
+				inverted = true;
+
+			if (holder == thread) {
+				reportDeadlock(lock, thread);
+				break;
+			}
+
+			// the chain ran into a cycle that was reported when it formed
+			if (length > waits.size())
+				break;
+
+			Wait wait = waits.get(holder);
+			next = (wait != null) ? wait.lock : null;
+		}
+
+		longestChain = Math.max(longestChain, length);
+
+		waits.put(thread, new Wait(lock, inverted));
+	}
+
+	/**
+	 * Called with interrupts disabled when <i>lock</i> is released and handed
+	 * to <i>next</i>, or left free if <i>next</i> is <tt>null</tt>.
+	 */
+	static void released(Lock lock, KThread next) {
+		if (next == null) {
+			holders.remove(lock);
+			return;
+		}
+
+		holders.put(lock, next);
+
+		Wait wait = waits.remove(next);
+		if (wait != null && wait.inverted) {
+			long ticks = Machine.timer().getTime() - wait.startTime;
+			inversions++;
+			inversionTicks += ticks;
+			maxInversionTicks = Math.max(maxInversionTicks, ticks);
+		}
+	}
+
+	private static void reportDeadlock(Lock lock, KThread thread) {
+		deadlocks++;
+
+		StringBuffer cycle = new StringBuffer("Deadlock: " + thread);
+		for (Lock next = lock; ; next = waits.get(holders.get(next)).lock) {
+			KThread holder = holders.get(next);
+			cycle.append(" waits for " + lockName(next) + " held by " + holder);
+			if (holder == thread)
+				break;
+			cycle.append(", which");
+		}
+
+		System.out.println(cycle);
+	}
+
+	private static String lockName(Lock lock) {
+		return (lock.getName() != null) ? lock.getName() : "an unnamed lock";
+	}
+
+	/**
+	 * Return the number of deadlocks found so far.
+	 *
+	 * @return the number of cycles closed in the wait-for graph.
+	 */
+	public static int deadlocks() {
+		return deadlocks;
+	}
+
+	/**
+	 * Print the number of deadlocks found, and the priority inversion and
+	 * chain length statistics.
+	 */
+	public static void print() {
+		System.out.println("Deadlock detector: " + deadlocks + " deadlocks, "
+				+ "longest wait chain " + longestChain);
+		System.out.println("Priority inversions: " + inversions + ", ticks: "
+				+ "total " + inversionTicks + ", max " + maxInversionTicks);
+	}
+
+	/**
+	 * A thread's wait for a lock.
+	 */
+	private static class Wait {
+		Wait(Lock lock, boolean inverted) {
+			this.lock = lock;
+			this.inverted = inverted;
+			this.startTime = Machine.timer().getTime();
+		}
+
+		Lock lock;
+
+		boolean inverted;
+
+		long startTime;
+	}
+
+	/**
+	 * Deadlock two threads on two locks and check that the detector reports
+	 * it. Does nothing unless the detector is enabled. The two threads are
+	 * left blocked forever.
+	 */
+	public static void selfTest() {
+		if (!enabled)
+			return;
+
+		final Lock a = new Lock("deadlock test lock A");
+		final Lock b = new Lock("deadlock test lock B");
+		int before = deadlocks;
+
+		new KThread(new Runnable() {
+			public void run() {
+				a.acquire();
+				KThread.yield();
+				b.acquire();
+			}
+		}).setName("deadlock test thread 1").fork();
+
+		new KThread(new Runnable() {
+			public void run() {
+				b.acquire();
+				KThread.yield();
+				a.acquire();
+			}
+		}).setName("deadlock test thread 2").fork();
+
+		for (int i = 0; i < 10; i++)
+			KThread.yield();
+
+		Lib.assertTrue(deadlocks == before + 1,
+				"DeadlockDetector missed a deadlock.");
+	}
+
+	private static final boolean enabled = Config.getBoolean(
+			"DeadlockDetector.enabled", false);
+
+	private static HashMap<Lock, KThread> holders = new HashMap<Lock, KThread>();
+
+	private static HashMap<KThread, Wait> waits = new HashMap<KThread, Wait>();
+
+	private static int deadlocks = 0, inversions = 0, longestChain = 0;
+
+	private static long inversionTicks = 0, maxInversionTicks = 0;
+}
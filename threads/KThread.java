@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -54,6 +56,9 @@ public class KThread {
 	 * create an idle thread as well.
 	 */
 	public KThread() {
+		if (accounting)
+			accounted.add(this);
+
 		if (currentThread != null) {
 			tcb = new TCB();
 		}
@@ -201,8 +206,8 @@ public class KThread {
 		Lib.assertTrue(toBeDestroyed == null);
 		toBeDestroyed = currentThread;
 
-		currentThread.status = statusFinished;
-		
+		currentThread.setStatus(statusFinished);
+
 		KThread next = currentThread.waitQueue.nextThread();
 		if (next != null) {
 			next.ready();
@@ -234,6 +239,11 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (Machine.interrupt().inHandler())
+			currentThread.involuntaryYields++;
+		else
+			currentThread.voluntaryYields++;
+
 		currentThread.ready();
 
 		runNextThread();
@@ -241,6 +251,19 @@ public class KThread {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Called by an interrupt handler to take the CPU away from the current
+	 * thread. Like <tt>yield()</tt>, except that it does nothing while the
+	 * current thread is already giving up the CPU, as the idle thread is when
+	 * it waits for the next interrupt.
+	 */
+	public static void preempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (currentThread.status == statusRunning)
+			KThread.yield();
+	}
+
 	/**
 	 * Relinquish the CPU, because the current thread has either finished or it
 	 * is blocked. This thread must be the current thread.
@@ -258,7 +281,7 @@ public class KThread {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
 		if (currentThread.status != statusFinished)
-			currentThread.status = statusBlocked;
+			currentThread.setStatus(statusBlocked);
 
 		runNextThread();
 	}
@@ -273,7 +296,7 @@ public class KThread {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
-		status = statusReady;
+		setStatus(statusReady);
 		if (this != idleThread)
 			readyQueue.waitForAccess(this);
 
@@ -365,11 +388,20 @@ public class KThread {
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
+	 *
+	 * <p>
+	 * If the idle thread is yielding and there is still nothing else to run,
+	 * let the interrupt controller skip ahead to the next pending interrupt
+	 * (see <tt>Interrupt.idle()</tt>).
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			if (currentThread == idleThread)
+				Machine.interrupt().idle();
+
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
@@ -423,7 +455,8 @@ public class KThread {
 
 		Machine.autoGrader().runningThread(this);
 
-		status = statusRunning;
+		setStatus(statusRunning);
+		switches++;
 
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
@@ -441,6 +474,86 @@ public class KThread {
 		Lib.assertTrue(this == currentThread);
 	}
 
+	/**
+	 * Move this thread to a new status, charging the time since its last
+	 * change of status to its running, ready, or blocked total.
+	 */
+	private void setStatus(int newStatus) {
+		long time = Machine.timer().getTime();
+
+		switch (status) {
+		case statusRunning:
+			runTicks += time - statusTime;
+			break;
+		case statusReady:
+			readyTicks += time - statusTime;
+			break;
+		case statusBlocked:
+			blockedTicks += time - statusTime;
+			break;
+		}
+
+		status = newStatus;
+		statusTime = time;
+	}
+
+	/**
+	 * Test if per-thread accounting is enabled, which is the case if
+	 * <tt>KThread.accounting</tt> is set.
+	 * 
+	 * @return <tt>true</tt> if every thread created is recorded for
+	 * <tt>printAccounting()</tt>.
+	 */
+	public static boolean accounting() {
+		return accounting;
+	}
+
+	/**
+	 * Print a line for every thread created while accounting was enabled,
+	 * whether or not it has finished. For each thread, show the ticks it has
+	 * spent running, ready to run but waiting for the CPU (its scheduling
+	 * latency), and blocked; the number of times it was switched to; and how
+	 * many times it yielded voluntarily or was preempted by an interrupt
+	 * handler.
+	 */
+	public static void printAccounting() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		long time = Machine.timer().getTime();
+
+		System.out.println("Threads (ticks):");
+		System.out.println(String.format(
+				"%6s %-24s %-8s %10s %10s %10s %8s %8s %8s", "ID", "NAME",
+				"STATE", "RUN", "READY", "BLOCKED", "SWITCHES", "VOL", "INVOL"));
+
+		for (KThread thread : accounted) {
+			long run = thread.runTicks;
+			long ready = thread.readyTicks;
+			long blocked = thread.blockedTicks;
+			long current = time - thread.statusTime;
+
+			switch (thread.status) {
+			case statusRunning:
+				run += current;
+				break;
+			case statusReady:
+				ready += current;
+				break;
+			case statusBlocked:
+				blocked += current;
+				break;
+			}
+
+			System.out.println(String.format(
+					"%6d %-24.24s %-8s %10d %10d %10d %8d %8d %8d", thread.id,
+					thread.name, statusNames[thread.status], run, ready, blocked,
+					thread.switches, thread.voluntaryYields,
+					thread.involuntaryYields));
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(int which) {
 			this.which = which;
@@ -519,6 +632,9 @@ public class KThread {
 
 	private static final int statusFinished = 4;
 
+	private static final String[] statusNames = { "new", "ready", "running",
+			"blocked", "finished" };
+
 	/**
 	 * The status of this thread. A thread can either be new (not yet forked),
 	 * ready (on the ready queue but not running), running, or blocked (not on
@@ -526,6 +642,13 @@ public class KThread {
 	 */
 	private int status = statusNew;
 
+	/** The time of the last change to <tt>status</tt>. */
+	private long statusTime = 0;
+
+	private long runTicks = 0, readyTicks = 0, blockedTicks = 0;
+
+	private int switches = 0, voluntaryYields = 0, involuntaryYields = 0;
+
 	private String name = "(unnamed thread)";
 
 	private Runnable target;
@@ -551,4 +674,9 @@ public class KThread {
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
+
+	private static final boolean accounting = Config.getBoolean(
+			"KThread.accounting", false);
+
+	private static LinkedList<KThread> accounted = new LinkedList<KThread>();
 }
@@ -0,0 +1,161 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A fixed set of worker <tt>KThread</tt>s that run <tt>Runnable</tt> tasks
+ * taken from a shared queue. Running a short task on a pool avoids creating
+ * and destroying a thread, and its TCB, for each one, and keeps the number of
+ * threads well below the TCB limit no matter how many tasks are submitted.
+ *
+ * <p>
+ * <tt>submit()</tt> returns a <tt>Future</tt>, which can be joined like the
+ * thread a task would otherwise have been forked on.
+ */
+public class KThreadPool {
+	/**
+	 * Allocate a new thread pool and start its workers.
+	 *
+	 * @param name the name of the pool, used to name its workers.
+	 * @param workers the number of worker threads.
+	 */
+	public KThreadPool(String name, int workers) {
+		Lib.assertTrue(workers > 0);
+
+		threads = new KThread[workers];
+		for (int i = 0; i < workers; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}).setName(name + " worker " + i);
+			threads[i].fork();
+		}
+	}
+
+	/**
+	 * Queue a task to be run by one of this pool's workers. Tasks are started
+	 * in the order they were submitted.
+	 *
+	 * @param task the task to run.
+	 * @return a future that completes when the task has run.
+	 */
+	public Future submit(Runnable task) {
+		Lib.assertTrue(task != null && !shutdown);
+
+		Future future = new Future(task);
+		queue.add(future);
+		return future;
+	}
+
+	/**
+	 * Run every task already submitted, then stop this pool's workers and wait
+	 * for them to finish. No tasks may be submitted afterwards.
+	 */
+	public void shutdown() {
+		Lib.assertTrue(!shutdown);
+		shutdown = true;
+
+		// one stop marker per worker, queued behind the remaining tasks
+		for (int i = 0; i < threads.length; i++)
+			queue.add(stop);
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+	}
+
+	/**
+	 * Return the number of worker threads in this pool.
+	 *
+	 * @return the number of workers.
+	 */
+	public int workers() {
+		return threads.length;
+	}
+
+	private void work() {
+		while (true) {
+			Object o = queue.removeFirst();
+			if (o == stop)
+				return;
+
+			((Future) o).run();
+		}
+	}
+
+	/**
+	 * The pending result of a task submitted to a <tt>KThreadPool</tt>.
+	 */
+	public static class Future {
+		private Future(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Wait for the task to finish running. Any number of threads may join
+		 * a future, any number of times.
+		 */
+		public void join() {
+			done.P();
+			done.V();
+		}
+
+		/**
+		 * Test if the task has finished running.
+		 *
+		 * @return <tt>true</tt> if the task has finished.
+		 */
+		public boolean isDone() {
+			return done.isReady();
+		}
+
+		private void run() {
+			task.run();
+			task = null;
+			done.V();
+		}
+
+		private Runnable task;
+
+		private Semaphore done = new Semaphore(0);
+	}
+
+	/**
+	 * Test that every task runs once, that a pool runs more tasks than it has
+	 * workers, and that <tt>shutdown()</tt> waits for the queued tasks.
+	 */
+	public static void selfTest() {
+		KThreadPool pool = new KThreadPool("test pool", 3);
+		final int[] counts = new int[20];
+
+		Future[] futures = new Future[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			final int index = i;
+			futures[i] = pool.submit(new Runnable() {
+				public void run() {
+					KThread.yield();
+					counts[index]++;
+				}
+			});
+		}
+
+		futures[counts.length / 2].join();
+		Lib.assertTrue(futures[counts.length / 2].isDone());
+		Lib.assertTrue(counts[0] == 1, "KThreadPool started tasks out of order.");
+
+		pool.shutdown();
+
+		for (int i = 0; i < counts.length; i++) {
+			Lib.assertTrue(futures[i].isDone() && counts[i] == 1,
+					"KThreadPool ran a task " + counts[i] + " times.");
+		}
+	}
+
+	private KThread[] threads;
+
+	private SynchList queue = new SynchList();
+
+	private boolean shutdown = false;
+
+	private static final Object stop = new Object();
+}
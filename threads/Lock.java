@@ -2,6 +2,11 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
 /**
  * A <tt>Lock</tt> is a synchronization primitive that has two states,
  * <i>busy</i> and <i>free</i>. There are only two operations allowed on a lock:
@@ -17,12 +22,46 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ * 
+ * <p>
+ * If <tt>Lock.spinYields</tt> is set in <tt>nachos.conf</tt>, a thread that
+ * finds a lock busy yields up to that many times, checking again after each,
+ * before it goes to sleep. Each lock adapts its own limit: it grows while
+ * yielding keeps paying off, and shrinks while it doesn't, so locks with long
+ * critical sections soon yield only once before sleeping.
+ * 
+ * <p>
+ * If <tt>Lock.profile</tt> is set, every lock records how often it is
+ * acquired and contended, and how many ticks threads wait for it and hold it,
+ * broken down by the call site of <tt>acquire()</tt>. The kernel prints the
+ * profile, busiest locks first, when it terminates.
+ * 
+ * <p>
+ * If <tt>DeadlockDetector.enabled</tt> is set, every lock reports its waits,
+ * acquisitions, and releases to the <tt>DeadlockDetector</tt>.
  */
 public class Lock {
 	/**
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		this(null);
+	}
+
+	/**
+	 * Allocate a new lock with a name, which identifies it in the lock
+	 * profile. The lock will initially be <i>free</i>.
+	 * 
+	 * @param name the name of this lock.
+	 */
+	public Lock(String name) {
+		this.name = name;
+		spinLimit = maxSpinYields;
+
+		if (profiling) {
+			profile = new Profile(name != null ? name : "lock #" + profiles.size());
+			profiles.add(profile);
+		}
 	}
 
 	/**
@@ -32,23 +71,56 @@ public class Lock {
 	public void acquire() {
 		Lib.assertTrue(!isHeldByCurrentThread());
 
+		long startTime = (profile != null) ? Machine.timer().getTime() : 0;
+		boolean contended = (lockHolder != null);
+
+		if (contended && spinLimit > 0)
+			spin();
+
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			if (contended && spinLimit > 0)
+				spinLimit = Math.max(spinLimit / 2, 1);
+
+			if (DeadlockDetector.enabled())
+				DeadlockDetector.waiting(this, thread);
+
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
 		}
 		else {
 			waitQueue.acquire(thread);
 			lockHolder = thread;
+
+			if (DeadlockDetector.enabled())
+				DeadlockDetector.acquired(this, thread);
 		}
 
 		Lib.assertTrue(lockHolder == thread);
 
+		if (profile != null)
+			profile.acquired(contended, startTime);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Yield until this lock is free or this lock's spin limit is reached. If
+	 * the lock became free, raise the limit again.
+	 */
+	private void spin() {
+		for (int i = 0; i < spinLimit; i++) {
+			KThread.yield();
+
+			if (lockHolder == null) {
+				spinLimit = Math.min(spinLimit * 2, maxSpinYields);
+				return;
+			}
+		}
+	}
+
 	/**
 	 * Atomically release this lock, allowing other threads to acquire it.
 	 */
@@ -57,9 +129,15 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (profile != null)
+			profile.released();
+
 		if ((lockHolder = waitQueue.nextThread()) != null)
 			lockHolder.ready();
 
+		if (DeadlockDetector.enabled())
+			DeadlockDetector.released(this, lockHolder);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -72,6 +150,143 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Return the name of this lock.
+	 * 
+	 * @return the name given to the constructor, or <tt>null</tt>.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Test whether lock profiling is enabled.
+	 * 
+	 * @return <tt>true</tt> if <tt>Lock.profile</tt> is set.
+	 */
+	public static boolean profiling() {
+		return profiling;
+	}
+
+	/**
+	 * Print the profile of every lock that has been acquired, those threads
+	 * spent the most ticks waiting for first.
+	 */
+	public static void printProfile() {
+		ArrayList<Profile> sorted = new ArrayList<Profile>();
+		for (Profile profile : profiles) {
+			if (profile.acquires > 0)
+				sorted.add(profile);
+		}
+		Collections.sort(sorted, byWaitTicks);
+
+		System.out.println("Lock profile (ticks):");
+		for (Profile profile : sorted)
+			profile.print();
+	}
+
+	/**
+	 * Acquisition statistics for one lock, or for one call site of a lock.
+	 */
+	private static class Profile {
+		Profile(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Record an acquisition by the current thread, which started trying
+		 * at <i>startTime</i>. Called with interrupts disabled.
+		 */
+		void acquired(boolean contended, long startTime) {
+			long time = Machine.timer().getTime();
+			String site = callSite();
+
+			Profile siteProfile = sites.get(site);
+			if (siteProfile == null) {
+				siteProfile = new Profile(site);
+				sites.put(site, siteProfile);
+			}
+
+			count(contended, time - startTime);
+			siteProfile.count(contended, time - startTime);
+
+			acquiredTime = time;
+		}
+
+		/** Record a release. Called with interrupts disabled. */
+		void released() {
+			holdTicks += Machine.timer().getTime() - acquiredTime;
+		}
+
+		private void count(boolean contended, long waited) {
+			acquires++;
+			if (contended)
+				contentions++;
+			waitTicks += waited;
+			maxWaitTicks = Math.max(maxWaitTicks, waited);
+		}
+
+		void print() {
+			System.out.println(name + ": acquires " + acquires
+					+ ", contended " + contentions + ", wait " + waitTicks
+					+ " (max " + maxWaitTicks + "), hold " + holdTicks);
+
+			ArrayList<Profile> sorted = new ArrayList<Profile>(sites.values());
+			Collections.sort(sorted, byWaitTicks);
+
+			for (Profile site : sorted)
+				System.out.println("\t" + site.name + ": acquires "
+						+ site.acquires + ", contended " + site.contentions
+						+ ", wait " + site.waitTicks);
+		}
+
+		/**
+		 * Return the first caller on the stack outside the synchronization
+		 * classes, so that a lock reacquired by <tt>Condition.sleep()</tt> is
+		 * charged to whoever slept.
+		 */
+		private static String callSite() {
+			for (StackTraceElement frame : new Throwable().getStackTrace()) {
+				String className = frame.getClassName();
+				if (!className.startsWith("nachos.threads.Lock")
+						&& !className.startsWith("nachos.threads.Condition"))
+					return frame.toString();
+			}
+
+			return "unknown";
+		}
+
+		String name;
+
+		long acquires = 0, contentions = 0;
+
+		long waitTicks = 0, maxWaitTicks = 0, holdTicks = 0;
+
+		long acquiredTime;
+
+		HashMap<String, Profile> sites = new HashMap<String, Profile>();
+	}
+
+	private static final Comparator<Profile> byWaitTicks = new Comparator<Profile>() {
+		public int compare(Profile a, Profile b) {
+			return Long.compare(b.waitTicks, a.waitTicks);
+		}
+	};
+
+	private static final boolean profiling = Config.getBoolean("Lock.profile",
+			false);
+
+	private static final int maxSpinYields = Config.getInteger(
+			"Lock.spinYields", 0);
+
+	private static ArrayList<Profile> profiles = new ArrayList<Profile>();
+
+	private String name;
+
+	private Profile profile = null;
+
+	private int spinLimit;
+
 	private KThread lockHolder = null;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
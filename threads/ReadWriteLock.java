@@ -0,0 +1,279 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of readers hold it at once, or a
+ * single writer. It is meant for read-mostly structures, whose readers would
+ * otherwise be serialized by an exclusive <tt>Lock</tt>.
+ *
+ * <p>
+ * Once a writer is waiting, new readers wait too, so a steady stream of
+ * readers cannot starve writers. What happens when a writer releases the lock
+ * depends on the policy chosen at construction:
+ *
+ * <ul>
+ * <li><i>fair</i>: every reader that arrived while the writer held the lock
+ * goes next, then the next writer. Readers and writers take turns, so neither
+ * can starve the other.
+ * <li><i>writer-preferring</i>: the next waiting writer goes next, and readers
+ * only get in once no writer is waiting.
+ * </ul>
+ *
+ * <p>
+ * Writers wait in a queue that transfers priority, so a waiting writer
+ * donates its priority to the writer holding the lock, as with <tt>Lock</tt>.
+ * Readers have no single holder to donate to, so they don't, and while
+ * readers hold the lock the writers' queue has no holder at all.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new fair read-write lock. The lock will initially be free.
+	 */
+	public ReadWriteLock() {
+		this(false);
+	}
+
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 *
+	 * @param writerPreferring <tt>true</tt> if a releasing writer should hand
+	 * the lock to another waiting writer before any waiting reader.
+	 */
+	public ReadWriteLock(boolean writerPreferring) {
+		this.writerPreferring = writerPreferring;
+	}
+
+	/**
+	 * Atomically wait until no writer holds or is waiting for this lock, then
+	 * acquire it for reading.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (writer == null && waitingWriters == 0) {
+			readers++;
+		}
+		else {
+			// whoever wakes us counts us as a reader first
+			waitingReaders++;
+			readQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock after reading. The last reader out hands the lock to
+	 * a waiting writer, if any.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(readers > 0);
+
+		if (--readers == 0 && waitingWriters > 0)
+			grantWriter();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically wait until no thread holds this lock, then acquire it for
+	 * writing. The current thread must not already hold this lock.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && readers == 0) {
+			writeQueue.acquire(thread);
+			writer = thread;
+		}
+		else {
+			waitingWriters++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock after writing, handing it to the next waiting writer
+	 * or to all waiting readers according to this lock's policy.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+
+		if (waitingWriters > 0 && (writerPreferring || waitingReaders == 0)) {
+			grantWriter();
+		}
+		else {
+			disownWriteQueue();
+			grantReaders();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	private void grantWriter() {
+		writer = writeQueue.nextThread();
+		Lib.assertTrue(writer != null);
+		waitingWriters--;
+		writer.ready();
+	}
+
+	/**
+	 * Leave the writers' queue with no holder, so waiting writers stop
+	 * donating priority to the writer that has just released the lock.
+	 * <tt>nextThread()</tt> is the only way to do so, and it hands ownership
+	 * to each waiting writer in turn until none is left, so the writers are
+	 * queued again afterwards, in the same order.
+	 */
+	private void disownWriteQueue() {
+		LinkedList<KThread> waiting = new LinkedList<KThread>();
+
+		KThread thread;
+		while ((thread = writeQueue.nextThread()) != null)
+			waiting.add(thread);
+
+		for (KThread waiter : waiting)
+			writeQueue.waitForAccess(waiter);
+	}
+
+	private void grantReaders() {
+		KThread reader;
+		while ((reader = readQueue.nextThread()) != null) {
+			waitingReaders--;
+			readers++;
+			reader.ready();
+		}
+	}
+
+	/**
+	 * Test that readers share this lock, that writers exclude everyone, and
+	 * that each policy picks the right thread when a writer releases. Also
+	 * check that the writers' queue is held by the writer holding the lock,
+	 * and by no one while readers hold it.
+	 */
+	public static void selfTest() {
+		selfTest(false);
+		selfTest(true);
+	}
+
+	private static void selfTest(final boolean writerPreferring) {
+		final ReadWriteLock lock = new ReadWriteLock(writerPreferring);
+		final StringBuffer order = new StringBuffer();
+
+		final HolderQueue queue = new HolderQueue();
+		lock.writeQueue = queue;
+
+		lock.acquireWrite();
+
+		KThread[] threads = new KThread[4];
+		String[] roles = { "r", "w", "r", "w" };
+		for (int i = 0; i < threads.length; i++) {
+			final boolean reader = roles[i].equals("r");
+			final String name = roles[i] + i;
+
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					if (reader) {
+						lock.acquireRead();
+						Lib.assertTrue(queue.holder == null,
+								"ReadWriteLock writers donate to a reader.");
+						order.append(name + " ");
+						KThread.yield();
+						lock.releaseRead();
+					}
+					else {
+						lock.acquireWrite();
+						Lib.assertTrue(queue.holder == KThread.currentThread(),
+								"ReadWriteLock writers donate to the wrong thread.");
+						order.append(name + " ");
+						KThread.yield();
+						lock.releaseWrite();
+					}
+				}
+			}).setName(name);
+			threads[i].fork();
+		}
+
+		// let everyone queue up behind the writer
+		KThread.yield();
+		lock.releaseWrite();
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		String expected = writerPreferring ? "w1 w3 r0 r2 " : "r0 r2 w1 w3 ";
+		Lib.assertTrue(order.toString().equals(expected),
+				"ReadWriteLock granted out of order: " + order);
+		Lib.assertTrue(queue.holder == null,
+				"ReadWriteLock writers' queue still held when free.");
+	}
+
+	/**
+	 * A FIFO queue that remembers which thread it last gave access to, for
+	 * checking what a priority scheduler would see.
+	 */
+	private static class HolderQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			queue.waitForAccess(thread);
+		}
+
+		public KThread nextThread() {
+			holder = queue.nextThread();
+			return holder;
+		}
+
+		public void acquire(KThread thread) {
+			queue.acquire(thread);
+			holder = thread;
+		}
+
+		public void print() {
+			queue.print();
+		}
+
+		KThread holder = null;
+
+		private ThreadQueue queue = new RoundRobinScheduler()
+				.newThreadQueue(false);
+	}
+
+	private boolean writerPreferring;
+
+	private KThread writer = null;
+
+	private int readers = 0, waitingReaders = 0, waitingWriters = 0;
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
@@ -0,0 +1,37 @@
+package nachos.threads;
+
+/**
+ * An event source that a <tt>Selector</tt> can wait on. A source is
+ * <i>ready</i> when the operation it guards (for example
+ * <tt>Semaphore.P()</tt> or <tt>SynchList.removeFirst()</tt>) would not block.
+ *
+ * <p>
+ * Every method is called with interrupts disabled. A source must call
+ * <tt>Selector.signal()</tt> on each registered selector whenever it might
+ * have become ready.
+ *
+ * @see nachos.threads.Selector
+ */
+public interface Selectable {
+	/**
+	 * Test whether this source is ready.
+	 *
+	 * @return <tt>true</tt> if the guarded operation would not block.
+	 */
+	public boolean isReady();
+
+	/**
+	 * Start signalling the specified selector when this source might have
+	 * become ready.
+	 *
+	 * @param selector the selector to signal.
+	 */
+	public void addSelector(Selector selector);
+
+	/**
+	 * Stop signalling the specified selector.
+	 *
+	 * @param selector the selector to stop signalling.
+	 */
+	public void removeSelector(Selector selector);
+}
@@ -0,0 +1,208 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A <i>selector</i> lets one thread wait on several event sources at once,
+ * with an optional timeout. Sources are <tt>Selectable</tt> objects, such as
+ * <tt>Semaphore</tt>s, <tt>SynchList</tt>s, <tt>Channel</tt>s, and
+ * <tt>Communicator</tt>s.
+ *
+ * <p>
+ * <tt>select()</tt> returns a source that is ready, and the caller then
+ * performs the source's own operation on it. A source that was ready may be
+ * drained by another thread before the caller gets to it, so a caller that
+ * shares its sources should use a non-blocking operation, such as
+ * <tt>Semaphore.tryP()</tt> or <tt>SynchList.tryRemoveFirst()</tt>, and
+ * select again if it fails.
+ *
+ * <p>
+ * A selector may be used by only one thread at a time. Sources are polled
+ * round-robin, starting after the last source returned, so that a busy source
+ * cannot starve the others.
+ */
+public class Selector {
+	/**
+	 * Allocate a new selector with no sources.
+	 */
+	public Selector() {
+	}
+
+	/**
+	 * Add a source to this selector.
+	 *
+	 * @param source the source to add.
+	 */
+	public void add(Selectable source) {
+		Lib.assertTrue(source != null && waiter == null);
+		sources.add(source);
+	}
+
+	/**
+	 * Remove a source from this selector.
+	 *
+	 * @param source the source to remove.
+	 */
+	public void remove(Selectable source) {
+		Lib.assertTrue(waiter == null);
+		sources.remove(source);
+	}
+
+	/**
+	 * Wait until one of this selector's sources is ready.
+	 *
+	 * @return a ready source.
+	 */
+	public Selectable select() {
+		return select(-1);
+	}
+
+	/**
+	 * Wait until one of this selector's sources is ready, or until at least
+	 * <i>timeout</i> ticks have passed. A timeout of 0 polls the sources
+	 * without blocking, and a negative timeout waits forever.
+	 *
+	 * @param timeout the maximum number of ticks to wait.
+	 * @return a ready source, or <tt>null</tt> if none became ready in time.
+	 */
+	public Selectable select(long timeout) {
+		Lib.assertTrue(waiter == null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Selectable ready = findReady();
+
+		if (ready == null && timeout != 0) {
+			waiter = KThread.currentThread();
+			timedOut = false;
+
+			for (Selectable source : sources)
+				source.addSelector(this);
+
+			Alarm.Timeout alarm = null;
+			if (timeout > 0) {
+				alarm = ThreadedKernel.alarm.schedule(timeout, new Runnable() {
+					public void run() {
+						timedOut = true;
+						wakeWaiter();
+					}
+				});
+			}
+
+			// a signal only means a source might be ready, so check again
+			while (ready == null && !timedOut) {
+				sleeping = true;
+				KThread.sleep();
+				ready = findReady();
+			}
+
+			if (alarm != null)
+				alarm.cancel();
+
+			for (Selectable source : sources)
+				source.removeSelector(this);
+
+			waiter = null;
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return ready;
+	}
+
+	/**
+	 * Called by a source, with interrupts disabled, when it might have become
+	 * ready. Wakes the thread blocked in <tt>select()</tt>, if any.
+	 *
+	 * @param source the source that might be ready.
+	 */
+	public void signal(Selectable source) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		wakeWaiter();
+	}
+
+	/**
+	 * Signal each selector in a source's list of registered selectors. A
+	 * convenience for <tt>Selectable</tt> implementations.
+	 *
+	 * @param selectors the registered selectors, or <tt>null</tt> if there
+	 * are none.
+	 * @param source the source that might be ready.
+	 */
+	public static void signalAll(LinkedList<Selector> selectors,
+			Selectable source) {
+		if (selectors == null)
+			return;
+
+		for (Selector selector : selectors)
+			selector.signal(source);
+	}
+
+	private void wakeWaiter() {
+		if (sleeping) {
+			sleeping = false;
+			waiter.ready();
+		}
+	}
+
+	private Selectable findReady() {
+		int n = sources.size();
+
+		for (int i = 1; i <= n; i++) {
+			int index = (last + i) % n;
+			Selectable source = sources.get(index);
+			if (source.isReady()) {
+				last = index;
+				return source;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Test a selector over two semaphores and a synchronized list, with and
+	 * without a timeout.
+	 */
+	public static void selfTest() {
+		final Semaphore a = new Semaphore(0);
+		final Semaphore b = new Semaphore(0);
+		final SynchList list = new SynchList();
+
+		Selector selector = new Selector();
+		selector.add(a);
+		selector.add(b);
+		selector.add(list);
+
+		Lib.assertTrue(selector.select(0) == null);
+		Lib.assertTrue(selector.select(1000) == null, "Selector did not time out.");
+
+		KThread signaller = new KThread(new Runnable() {
+			public void run() {
+				b.V();
+				ThreadedKernel.alarm.waitUntil(1000);
+				list.add("mail");
+			}
+		}).setName("selector signaller");
+		signaller.fork();
+
+		Lib.assertTrue(selector.select() == b);
+		Lib.assertTrue(b.tryP() && !b.tryP());
+		Lib.assertTrue(selector.select(100000) == list);
+		Lib.assertTrue(list.tryRemoveFirst().equals("mail"));
+
+		signaller.join();
+	}
+
+	private ArrayList<Selectable> sources = new ArrayList<Selectable>();
+
+	private int last = -1;
+
+	private KThread waiter = null;
+
+	private boolean sleeping = false, timedOut = false;
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value. A
  * semaphore has only two operations:
@@ -20,8 +22,17 @@ import nachos.machine.*;
  * the time you get the value, a context switch might have occurred, and some
  * other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the true
  * value might now be different.
+ * 
+ * <p>
+ * A semaphore is <tt>Selectable</tt>: it is ready when <tt>P()</tt> would not
+ * block.
+ * 
+ * <p>
+ * <tt>P(Runnable)</tt> waits without a thread: instead of sleeping, the caller
+ * leaves a continuation, which the thread that later calls <tt>V()</tt> runs
+ * on the caller's behalf.
  */
-public class Semaphore {
+public class Semaphore implements Selectable {
 	/**
 	 * Allocate a new semaphore.
 	 * 
@@ -48,9 +59,43 @@ public class Semaphore {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically decrement this semaphore if it is non-zero, or else leave
+	 * <i>continuation</i> to be run once it has been decremented on the
+	 * caller's behalf. Never waits.
+	 * 
+	 * <p>
+	 * A continuation is run by the thread that calls <tt>V()</tt>, with
+	 * interrupts disabled, possibly from an interrupt handler, so it must not
+	 * block. Threads waiting in <tt>P()</tt> are woken before any continuation
+	 * is run.
+	 * 
+	 * @param continuation the code to run once this semaphore has been
+	 * decremented, if it cannot be decremented now.
+	 * @return <tt>true</tt> if the semaphore was decremented now, in which case
+	 * <i>continuation</i> will never be run.
+	 */
+	public boolean P(Runnable continuation) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean acquired = (value > 0);
+		if (acquired) {
+			value--;
+		}
+		else {
+			if (continuations == null)
+				continuations = new LinkedList<Runnable>();
+			continuations.add(continuation);
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return acquired;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
-	 * sleeping on this semaphore.
+	 * sleeping on this semaphore, or run at most one continuation.
 	 */
 	public void V() {
 		boolean intStatus = Machine.interrupt().disable();
@@ -59,13 +104,48 @@ public class Semaphore {
 		if (thread != null) {
 			thread.ready();
 		}
+		else if (continuations != null && !continuations.isEmpty()) {
+			continuations.removeFirst().run();
+		}
 		else {
 			value++;
+			Selector.signalAll(selectors, this);
 		}
 
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Decrement this semaphore if it is non-zero, without waiting.
+	 * 
+	 * @return <tt>true</tt> if the semaphore was decremented.
+	 */
+	public boolean tryP() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean acquired = (value > 0);
+		if (acquired)
+			value--;
+
+		Machine.interrupt().restore(intStatus);
+
+		return acquired;
+	}
+
+	public boolean isReady() {
+		return value > 0;
+	}
+
+	public void addSelector(Selector selector) {
+		if (selectors == null)
+			selectors = new LinkedList<Selector>();
+		selectors.add(selector);
+	}
+
+	public void removeSelector(Selector selector) {
+		selectors.remove(selector);
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(Semaphore ping, Semaphore pong) {
 			this.ping = ping;
@@ -97,10 +177,26 @@ public class Semaphore {
 			ping.V();
 			pong.P();
 		}
+
+		final int[] resumed = new int[1];
+		Runnable continuation = new Runnable() {
+			public void run() {
+				resumed[0]++;
+			}
+		};
+
+		Lib.assertTrue(!ping.P(continuation) && resumed[0] == 0);
+		ping.V();
+		Lib.assertTrue(resumed[0] == 1 && !ping.isReady(),
+				"Semaphore did not run its continuation.");
 	}
 
 	private int value;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
+
+	private LinkedList<Selector> selectors = null;
+
+	private LinkedList<Runnable> continuations = null;
 }
@@ -5,9 +5,10 @@ import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue. A synchronized queue is <tt>Selectable</tt>: it is
+ * ready when it is non-empty.
  */
-public class SynchList {
+public class SynchList implements Selectable {
 	/**
 	 * Allocate a new synchronized queue.
 	 */
@@ -30,6 +31,10 @@ public class SynchList {
 		list.add(o);
 		listEmpty.wake();
 		lock.release();
+
+		boolean intStatus = Machine.interrupt().disable();
+		Selector.signalAll(selectors, this);
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -50,6 +55,38 @@ public class SynchList {
 		return o;
 	}
 
+	/**
+	 * Remove an object from the front of the queue, if there is one, without
+	 * waiting.
+	 * 
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue is empty.
+	 */
+	public Object tryRemoveFirst() {
+		Object o = null;
+
+		lock.acquire();
+		if (!list.isEmpty())
+			o = list.removeFirst();
+		lock.release();
+
+		return o;
+	}
+
+	public boolean isReady() {
+		return !list.isEmpty();
+	}
+
+	public void addSelector(Selector selector) {
+		if (selectors == null)
+			selectors = new LinkedList<Selector>();
+		selectors.add(selector);
+	}
+
+	public void removeSelector(Selector selector) {
+		selectors.remove(selector);
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -87,4 +124,6 @@ public class SynchList {
 	private Lock lock;
 
 	private Condition listEmpty;
+
+	private LinkedList<Selector> selectors = null;
 }
@@ -66,9 +66,18 @@ public class ThreadedKernel extends Kernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel. Never returns. Prints the lock profile, the
+	 * per-thread accounting, and the deadlock detector's findings first, if
+	 * they are enabled.
 	 */
 	public void terminate() {
+		if (Lock.profiling())
+			Lock.printProfile();
+		if (KThread.accounting())
+			KThread.printAccounting();
+		if (DeadlockDetector.enabled())
+			DeadlockDetector.print();
+
 		Machine.halt();
 	}
 
@@ -24,8 +24,55 @@ public class UThread extends KThread {
 		this.process = process;
 	}
 
+	/**
+	 * Allocate a new UThread to finish a syscall that its process began on
+	 * another thread, which has since finished. The new thread runs
+	 * <i>continuation</i> to get the syscall's result, then returns to user
+	 * mode just past the syscall.
+	 * 
+	 * @param process the process whose syscall is being finished.
+	 * @param registers the user registers at the time of the syscall.
+	 * @param continuation computes the syscall's return value.
+	 */
+	public UThread(UserProcess process, int[] registers,
+			UserProcess.Continuation continuation) {
+		this(process);
+
+		System.arraycopy(registers, 0, userRegisters, 0, userRegisters.length);
+		this.continuation = continuation;
+	}
+
+	/**
+	 * Allocate a new UThread to resume a process whose user registers were
+	 * saved elsewhere, such as on another machine. The new thread returns to
+	 * user mode with <i>registers</i> exactly as given, so an instruction
+	 * that faulted is run again.
+	 * 
+	 * @param process the process to resume.
+	 * @param registers the user registers to resume with.
+	 */
+	public UThread(UserProcess process, int[] registers) {
+		this(process);
+
+		System.arraycopy(registers, 0, userRegisters, 0, userRegisters.length);
+		resumed = true;
+	}
+
 	private void runProgram() {
-		process.initRegisters();
+		if (resumed) {
+			resumed = false;
+		}
+		else if (continuation == null) {
+			process.initRegisters();
+		}
+		else {
+			int result = continuation.resume();
+			continuation = null;
+
+			Machine.processor().writeRegister(Processor.regV0, result);
+			Machine.processor().advancePC();
+		}
+
 		process.restoreState();
 
 		Machine.processor().run();
@@ -72,4 +119,10 @@ public class UThread extends KThread {
 	 * The process to which this thread belongs.
 	 */
 	public UserProcess process;
+
+	/** The syscall this thread must finish before running user code. */
+	private UserProcess.Continuation continuation = null;
+
+	/** Whether this thread starts with user registers it was given. */
+	private boolean resumed = false;
 }
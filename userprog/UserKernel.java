@@ -30,9 +30,9 @@ public class UserKernel extends ThreadedKernel {
 		public void run() { exceptionHandler(); }
 	    });
 	
-	processLock = new Lock();
+	processLock = new Lock("processLock");
 	
-	memoryLock = new Lock();	
+	memoryLock = new Lock("memoryLock");
 	for (int ppn=0; ppn<Machine.processor().getNumPhysPages(); ppn++)
 	    freePages.add(new Integer(ppn));
     }
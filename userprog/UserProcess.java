@@ -40,7 +40,7 @@ public class UserProcess {
 		for (int i = 2; i < maxFiles; i++)
 			fileTable[i] = null;
 		
-		pteLock = new Lock();
+		pteLock = new Lock("pteLock");
 	}
 
 	/**
@@ -306,6 +306,56 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
+		if (!loadExecutable(name))
+			return false;
+
+		// make sure the argv array will fit in one page
+		byte[][] argv = new byte[args.length][];
+		int argsSize = 0;
+		for (int i = 0; i < args.length; i++) {
+			argv[i] = args[i].getBytes();
+			// 4 bytes for argv[] pointer; then string plus one for null byte
+			argsSize += 4 + argv[i].length + 1;
+		}
+		if (argsSize > pageSize) {
+			coff.close();
+			Lib.debug(dbgProcess, "\targuments too long");
+			return false;
+		}
+
+		if (!loadSections())
+			return false;
+
+		// store arguments in last page
+		int entryOffset = (numPages - 1) * pageSize;
+		int stringOffset = entryOffset + args.length * 4;
+
+		this.argc = args.length;
+		this.argv = entryOffset;
+
+		for (int i = 0; i < argv.length; i++) {
+			byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
+			Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes) == 4);
+			entryOffset += 4;
+			Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) == argv[i].length);
+			stringOffset += argv[i].length;
+			Lib.assertTrue(writeVirtualMemory(stringOffset, new byte[] { 0 }) == 1);
+			stringOffset += 1;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Open the named executable and lay out this process's address space:
+	 * its sections, then the stack, then a page for arguments. Does not
+	 * allocate memory; that is left to <tt>loadSections()</tt>.
+	 *
+	 * @param name
+	 *            the name of the file containing the executable.
+	 * @return <tt>true</tt> if the executable was successfully opened.
+	 */
+	protected boolean loadExecutable(String name) {
 		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
 		if (executable == null) {
 			Lib.debug(dbgProcess, "\topen failed");
@@ -332,19 +382,7 @@ public class UserProcess {
 			numPages += section.getLength();
 		}
 
-		// make sure the argv array will fit in one page
-		byte[][] argv = new byte[args.length][];
-		int argsSize = 0;
-		for (int i = 0; i < args.length; i++) {
-			argv[i] = args[i].getBytes();
-			// 4 bytes for argv[] pointer; then string plus one for null byte
-			argsSize += 4 + argv[i].length + 1;
-		}
-		if (argsSize > pageSize) {
-			coff.close();
-			Lib.debug(dbgProcess, "\targuments too long");
-			return false;
-		}
+		executableName = name;
 
 		// program counter initially points at the program entry point
 		initialPC = coff.getEntryPoint();
@@ -356,26 +394,6 @@ public class UserProcess {
 		// and finally reserve 1 page for arguments
 		numPages++;
 
-		if (!loadSections())
-			return false;
-
-		// store arguments in last page
-		int entryOffset = (numPages - 1) * pageSize;
-		int stringOffset = entryOffset + args.length * 4;
-
-		this.argc = args.length;
-		this.argv = entryOffset;
-
-		for (int i = 0; i < argv.length; i++) {
-			byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-			Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes) == 4);
-			entryOffset += 4;
-			Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) == argv[i].length);
-			stringOffset += argv[i].length;
-			Lib.assertTrue(writeVirtualMemory(stringOffset, new byte[] { 0 }) == 1);
-			stringOffset += 1;
-		}
-
 		return true;
 	}
 
@@ -486,11 +504,7 @@ public class UserProcess {
 
 		UserKernel.processLock.acquire();
 
-		if (parentProcess != null) {
-			Integer value = abnormalTermination ? null : new Integer(status);
-			parentProcess.exitStatusTable.put(new Integer(processID), value);
-			parentProcess.childFinished.wake();
-		}
+		reportExit(abnormalTermination ? null : Integer.valueOf(status));
 
 		if (--UserKernel.numRunningProcesses == 0)
 			Kernel.kernel.terminate();
@@ -502,6 +516,28 @@ public class UserProcess {
 		return 0;
 	}
 
+	/**
+	 * Give this process's exit status to its parent, if it has one, and wake
+	 * a parent waiting to join it. Called with <tt>processLock</tt> held.
+	 *
+	 * @param status
+	 *            the exit status, or <tt>null</tt> if the process terminated
+	 *            abnormally.
+	 */
+	protected void reportExit(Integer status) {
+		if (parentProcess != null) {
+			parentProcess.exitStatusTable.put(Integer.valueOf(processID), status);
+			exited.V();
+		}
+	}
+
+	/**
+	 * Return <tt>true</tt> if this process has ever executed a child.
+	 */
+	protected boolean hasChildren() {
+		return !childProcesses.isEmpty();
+	}
+
 	private int handleExec(int vaddrExecutableName, int argc, int vaddrArgv) {
 		String executableName = readVirtualMemoryString(vaddrExecutableName,
 				256);
@@ -535,6 +571,7 @@ public class UserProcess {
 			result = childProcess.processID;
 
 			childProcesses.add(new Integer(result));
+			childExited.put(Integer.valueOf(result), childProcess.exited);
 		}
 
 		UserKernel.processLock.release();
@@ -542,18 +579,29 @@ public class UserProcess {
 		return result;
 	}
 
-	private int handleJoin(int childID, int vaddrStatus) {
+	private int handleJoin(final int childID, final int vaddrStatus) {
 		Integer integerChildID = new Integer(childID);
-		Integer status;
-		int result;
 
 		if (!childProcesses.contains(integerChildID))
 			return -1;
 
-		UserKernel.processLock.acquire();
+		return waitThen(childExited.get(integerChildID),
+				new Continuation() {
+					public int resume() {
+						return finishJoin(childID, vaddrStatus);
+					}
+				});
+	}
 
-		while (!exitStatusTable.containsKey(integerChildID))
-			childFinished.sleep();
+	private int finishJoin(int childID, int vaddrStatus) {
+		Integer integerChildID = Integer.valueOf(childID);
+		Integer status;
+		int result;
+
+		// let any later join of the same child return at once
+		childExited.get(integerChildID).V();
+
+		UserKernel.processLock.acquire();
 
 		status = (Integer) exitStatusTable.get(integerChildID);
 
@@ -690,6 +738,73 @@ public class UserProcess {
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
 			syscallUnlink = 9;
 
+	/**
+	 * Finish the current syscall once <i>ready</i> has been decremented. If it
+	 * can be decremented now, return <i>continuation</i>'s result at once.
+	 * Otherwise the current thread sleeps until it can, unless
+	 * <tt>UserProcess.continuations</tt> is set. In that case the current
+	 * thread finishes instead of sleeping, and gives its TCB back, leaving
+	 * <i>continuation</i> with <i>ready</i>. When <i>ready</i> is next V'd, a
+	 * new <tt>UThread</tt> is forked to run <i>continuation</i> and return its
+	 * result to user mode, so a process blocked in a syscall holds no thread.
+	 * 
+	 * <p>
+	 * Must be called from a syscall handler, with the user registers as they
+	 * were at the syscall.
+	 * 
+	 * @param ready the semaphore to wait on.
+	 * @param continuation computes the syscall's return value once
+	 * <i>ready</i> has been decremented.
+	 * @return the syscall's return value, if the current thread did not have
+	 * to wait.
+	 */
+	protected int waitThen(Semaphore ready, final Continuation continuation) {
+		if (!continuations) {
+			ready.P();
+			return continuation.resume();
+		}
+
+		final int[] registers = new int[Processor.numUserRegisters];
+		for (int i = 0; i < registers.length; i++)
+			registers[i] = Machine.processor().readRegister(i);
+
+		final String name = KThread.currentThread().getName();
+
+		// nothing may run on this process between leaving the continuation and
+		// finishing this thread
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean acquired = ready.P(new Runnable() {
+			public void run() {
+				new UThread(UserProcess.this, registers, continuation).setName(
+						name).fork();
+			}
+		});
+
+		if (acquired) {
+			Machine.interrupt().restore(intStatus);
+			return continuation.resume();
+		}
+
+		KThread.finish();
+
+		Lib.assertNotReached("KThread.finish() did not finish thread!");
+		return 0;
+	}
+
+	/**
+	 * The remainder of a syscall that had to wait, run by
+	 * <tt>waitThen()</tt> once it can proceed.
+	 */
+	public interface Continuation {
+		/**
+		 * Finish the syscall.
+		 * 
+		 * @return the syscall's return value.
+		 */
+		public int resume();
+	}
+
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
 	 * <i>syscall</i> argument identifies which syscall the user executed:
@@ -862,17 +977,7 @@ boolean debugFault = false; boolean debugSwap = false;
 			pageTable[vpn].valid = true;
 			pageTable[vpn].ppn = ppn;
 		} else {
-			switch (map.vpns[vpn]) {
-			case SectionMap.CODE:
-				allocateCodePage(vpn, ppn);
-				break;
-			case SectionMap.DATA:
-				allocateDataPage(vpn, ppn);
-				break;
-			case SectionMap.STACK:
-				allocateStackPage(vpn, ppn);
-				break;
-			}
+			allocatePage(vpn, ppn);
 		}
 		pteLock.release(); if (debugFault) System.out.println(processID + " bringing in: " + vpn);
 
@@ -895,6 +1000,24 @@ boolean debugFault = false; boolean debugSwap = false;
 		}
 	}
 
+	/**
+	 * Fill physical page <i>ppn</i> with the initial contents of virtual page
+	 * <i>vpn</i>, which is not in the swap file, and map it.
+	 */
+	protected void allocatePage(int vpn, int ppn) {
+		switch (map.vpns[vpn]) {
+		case SectionMap.CODE:
+			allocateCodePage(vpn, ppn);
+			break;
+		case SectionMap.DATA:
+			allocateDataPage(vpn, ppn);
+			break;
+		case SectionMap.STACK:
+			allocateStackPage(vpn, ppn);
+			break;
+		}
+	}
+
 	protected void allocateCodePage(int vpn, int ppn) {
 		CoffSection section = coff.getSection(coffPages[vpn].section);
 		section.loadPage(coffPages[vpn].spn, ppn);
@@ -961,6 +1084,9 @@ boolean debugFault = false; boolean debugSwap = false;
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The name of the file <tt>coff</tt> was loaded from. */
+	protected String executableName;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 	/** The number of contiguous pages occupied by the program. */
@@ -974,11 +1100,12 @@ boolean debugFault = false; boolean debugSwap = false;
 
 	protected UserProcess parentProcess = null;
 	protected int processID;
+	protected boolean abnormalTermination = false;
 
 	private HashSet childProcesses = new HashSet();
 	private HashMap exitStatusTable = new HashMap();
-	private Condition childFinished = new Condition(UserKernel.processLock);
-	private boolean abnormalTermination = false;
+	private HashMap<Integer, Semaphore> childExited = new HashMap<Integer, Semaphore>();
+	private Semaphore exited = new Semaphore(0);
 
 	private byte[] ioBuffer = new byte[ioBufferSize];
 	private static final int ioBufferSize = 1024;
@@ -986,6 +1113,9 @@ boolean debugFault = false; boolean debugSwap = false;
 	protected OpenFile[] fileTable = new OpenFile[maxFiles];
 	protected static final int maxFiles = 16;
 
+	private static final boolean continuations = Config.getBoolean(
+			"UserProcess.continuations", false);
+
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
 }
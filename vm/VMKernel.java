@@ -24,8 +24,25 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
-		swapper = new Swapper();
-		swapLock = new Lock();
+		swapper = newSwapper();
+		swapLock = new Lock("swapLock");
+	}
+
+	/**
+	 * Create the swapper that evicted pages are written to. Subclasses may
+	 * return a <tt>Swapper</tt> that keeps pages somewhere other than the
+	 * local swap file.
+	 */
+	protected Swapper newSwapper() {
+		return new Swapper();
+	}
+
+	/**
+	 * Return the name of the swap file. Subclasses may use another name, so
+	 * that kernels sharing a file system do not share a swap file.
+	 */
+	protected String swapFileName() {
+		return "swapperinos";
 	}
 
 	/**
@@ -53,9 +70,9 @@ public class VMKernel extends UserKernel {
 	public class Swapper {
 		public Swapper() {
 			// Remove pre-existing swap file
-			swapperinos = ThreadedKernel.fileSystem.open("swapperinos", true);
+			swapperinos = ThreadedKernel.fileSystem.open(swapFileName(), true);
 			close();
-			swapperinos = ThreadedKernel.fileSystem.open("swapperinos", true);
+			swapperinos = ThreadedKernel.fileSystem.open(swapFileName(), true);
 			swapPages = new LinkedList<Boolean>();
 			this.ipt = new IPT(Machine.processor().getNumPhysPages());
 		}
@@ -76,16 +93,37 @@ public class VMKernel extends UserKernel {
 		}
 
 		public void readSwap(int spn, int ppn) {
+			readSwap(spn, Machine.processor().getMemory(), ppn
+					* Processor.pageSize);
+		}
+
+		/**
+		 * Read swap page <i>spn</i> into <i>buf</i>, starting at
+		 * <i>offset</i>.
+		 */
+		public void readSwap(int spn, byte[] buf, int offset) {
 			swapLock.acquire();
-			byte[] memory = Machine.processor().getMemory();
-			swapperinos.read(spn * Processor.pageSize, memory, ppn
-					* Processor.pageSize, Processor.pageSize);
+			readLocal(spn, buf, offset);
 			swapLock.release();
 		}
 
 		public int writeSwap(int spn, int ppn) {
 
 			swapLock.acquire();
+			int pos = allocateSwap(spn);
+
+			// Write to swap file
+			byte[] memory = Machine.processor().getMemory();
+			writeLocal(pos, memory, ppn * Processor.pageSize);
+			swapLock.release();
+			return pos;
+		}
+
+		/**
+		 * Return the swap page to write to: <i>spn</i>, or a free one if
+		 * <i>spn</i> is -1. swapLock must be held.
+		 */
+		protected int allocateSwap(int spn) {
 			int pos = spn;
 			if (spn == -1) {
 				int size = swapPages.size();
@@ -102,15 +140,27 @@ public class VMKernel extends UserKernel {
 				if (pos == size)
 					swapPages.add(false);
 			}
-
-			// Write to swap file
-			byte[] memory = Machine.processor().getMemory();
-			swapperinos.write(pos * Processor.pageSize, memory, ppn
-					* Processor.pageSize, Processor.pageSize);
-			swapLock.release();
 			return pos;
 		}
 
+		/**
+		 * Read swap page <i>spn</i> from the swap file into <i>buf</i>.
+		 * swapLock must be held.
+		 */
+		protected void readLocal(int spn, byte[] buf, int offset) {
+			swapperinos.read(spn * Processor.pageSize, buf, offset,
+					Processor.pageSize);
+		}
+
+		/**
+		 * Write a page from <i>buf</i> to swap page <i>spn</i> in the swap
+		 * file. swapLock must be held.
+		 */
+		protected void writeLocal(int spn, byte[] buf, int offset) {
+			swapperinos.write(spn * Processor.pageSize, buf, offset,
+					Processor.pageSize);
+		}
+
 		public void close() {
 			swapperinos.close();
 			// TODO: uncomment ThreadedKernel.fileSystem.remove("swapperinos");
@@ -129,27 +179,26 @@ public class VMKernel extends UserKernel {
 			pages = new PageFrame[size];
 			for (int i = 0; i < size; i++)
 				pages[i] = new PageFrame(null, new TranslationEntry(0, 0, false, false, false, false));
-			pageLock = new Lock();
+			pageLock = new ReadWriteLock();
 			pinnedPages = 0;
-			pinCountLock = new Lock();
-			pinLock = new Lock();
+			pinCountLock = new Lock("IPT.pinCountLock");
+			pinLock = new Lock("IPT.pinLock");
 			canPin = new Condition(pinLock);
 		}
 
 		public void update(int ppn, VMProcess process, TranslationEntry entry) {
-			pageLock.acquire();
+			pageLock.acquireWrite();
 			pages[ppn] = new PageFrame(process, entry);
-			pageLock.release();
+			pageLock.releaseWrite();
 		}
 
 		public PageFrame getPage(int ppn) {
-			pageLock.acquire();
-			if (ppn < 0 || ppn >= pages.length) {
-				pageLock.release();
+			if (ppn < 0 || ppn >= pages.length)
 				return null;
-			}
-			pageLock.release();
-			return pages[ppn];
+			pageLock.acquireRead();
+			PageFrame page = pages[ppn];
+			pageLock.releaseRead();
+			return page;
 		}
 
 		public VMProcess getProcess(int ppn) {
@@ -202,7 +251,7 @@ public class VMKernel extends UserKernel {
 		}
 
 		private int victim;
-		private Lock pageLock;
+		private ReadWriteLock pageLock; // lookups share it; update() excludes them
 		private PageFrame[] pages;
 		private int pinnedPages;
 		private Lock pinCountLock;